@@ -0,0 +1,88 @@
+package com.hawkprime.jms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Measures the CPU time each codec spends and the bytes it would send for a
+ * set of sample files. No broker is needed, the compressed bytes are only
+ * counted.
+ */
+public final class CompressionBenchmark {
+	private static final int ROUNDS = 5;
+	private static final double NANOS_IN_MILLI = 1e6;
+	private static final double BYTES_IN_MB = 1024 * 1024;
+
+	private CompressionBenchmark() {
+		/* empty */
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args sample files or directories
+	 * @throws IOException I/O exception
+	 */
+	// CHECKSTYLE IGNORE UncommentedMain
+	public static void main(final String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: CompressionBenchmark <file or directory>...");
+			System.exit(1);
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.isDirectory()) {
+				Collection<File> found = FileUtils.listFiles(file, null, true);
+				files.addAll(found);
+			} else {
+				files.add(file);
+			}
+		}
+
+		long inputBytes = 0;
+		for (File file : files) {
+			inputBytes += file.length();
+		}
+		System.out.printf("%d files, %d bytes, best of %d rounds%n", files.size(), inputBytes, ROUNDS);
+		System.out.printf("%-10s %14s %8s %10s %10s%n", "codec", "bytes sent", "ratio", "cpu ms", "MB/s cpu");
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		for (PayloadCodec codec : new PayloadCodec[] {PayloadCodec.GZIP, PayloadCodec.GZIP_FAST}) {
+			long bestCpu = Long.MAX_VALUE;
+			long outputBytes = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = threads.getCurrentThreadCpuTime();
+				outputBytes = 0;
+				for (File file : files) {
+					CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+					OutputStream out = codec.wrap(counter);
+					try {
+						FileUtils.copyFile(file, out);
+					} finally {
+						out.close();
+					}
+					outputBytes += counter.getByteCount();
+				}
+				bestCpu = Math.min(bestCpu, threads.getCurrentThreadCpuTime() - start);
+			}
+
+			double cpuMillis = bestCpu / NANOS_IN_MILLI;
+			System.out.printf("%-10s %14d %8.2f %10.1f %10.1f%n", codec, outputBytes,
+					(double) inputBytes / Math.max(1, outputBytes), cpuMillis,
+					inputBytes / BYTES_IN_MB / Math.max(cpuMillis / 1000, 1e-9));
+		}
+		System.out.printf("%-10s %14d %8.2f %10s %10s%n", "none", inputBytes, 1.0, "-", "-");
+	}
+}
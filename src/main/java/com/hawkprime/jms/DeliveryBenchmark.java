@@ -0,0 +1,81 @@
+package com.hawkprime.jms;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.JMSException;
+
+/**
+ * Measures send throughput of each delivery profile against a local broker
+ * queue used as a sink. Point it at a scratch queue, every message sent is
+ * left on it.
+ */
+public final class DeliveryBenchmark {
+	private static final int DEFAULT_COUNT = 10000;
+	private static final int DEFAULT_SIZE = 4096;
+	private static final int WARMUP_DIVISOR = 10;
+	private static final int HEADER_COUNT = 3;
+	private static final double NANOS_IN_SECOND = 1e9;
+	private static final int ARG_SERVER = 0;
+	private static final int ARG_USER = 1;
+	private static final int ARG_PASS = 2;
+	private static final int ARG_QUEUE = 3;
+	private static final int ARG_COUNT = 4;
+	private static final int ARG_SIZE = 5;
+
+	private DeliveryBenchmark() {
+		/* empty */
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args server user password queue [messages] [message bytes]
+	 * @throws JMSException JMS exception
+	 */
+	// CHECKSTYLE IGNORE UncommentedMain
+	public static void main(final String[] args) throws JMSException {
+		if (args.length <= ARG_QUEUE) {
+			System.err.println("Usage: DeliveryBenchmark <server> <user> <password> <queue> [messages] [bytes]");
+			System.err.println("   ie: DeliveryBenchmark tcp://localhost:7222 admin \"\" bench.sink");
+			System.exit(1);
+		}
+
+		int count = args.length > ARG_COUNT ? Integer.parseInt(args[ARG_COUNT]) : DEFAULT_COUNT;
+		int size = args.length > ARG_SIZE ? Integer.parseInt(args[ARG_SIZE]) : DEFAULT_SIZE;
+
+		char[] body = new char[size];
+		Arrays.fill(body, 'x');
+		String message = new String(body);
+
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < HEADER_COUNT; i++) {
+			headers.put("Header" + i, "value" + i);
+		}
+
+		TibcoQueue tibcoQueue = new TibcoQueue(args[ARG_SERVER], args[ARG_USER], args[ARG_PASS], args[ARG_QUEUE]);
+		tibcoQueue.connect();
+		try {
+			System.out.printf("%d messages of %d bytes%n", count, size);
+			System.out.printf("%-16s %12s %12s%n", "profile", "msgs/sec", "MB/sec");
+
+			for (DeliveryProfile profile : DeliveryProfile.values()) {
+				for (int i = 0; i < count / WARMUP_DIVISOR; i++) {
+					tibcoQueue.sendMessage(message, headers, profile);
+				}
+
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					tibcoQueue.sendMessage(message, headers, profile);
+				}
+				double seconds = (System.nanoTime() - start) / NANOS_IN_SECOND;
+
+				System.out.printf("%-16s %12.0f %12.2f%n", profile,
+						count / seconds, (double) count * size / seconds / (1024 * 1024));
+			}
+		} finally {
+			tibcoQueue.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.hawkprime.jms;
+
+import java.util.Locale;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+
+import com.tibco.tibjms.Tibjms;
+
+/**
+ * Named set of producer settings applied to each send.
+ */
+public final class DeliveryProfile {
+
+	/** Persistent, with message IDs and timestamps. The JMS defaults. */
+	public static final DeliveryProfile PERSISTENT = new DeliveryProfile("persistent",
+			DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE, false, false);
+
+	/**
+	 * Non-persistent without message IDs and timestamps. EMS does not wait for
+	 * the server to acknowledge non-persistent sends by default.
+	 */
+	public static final DeliveryProfile NON_PERSISTENT = new DeliveryProfile("non-persistent",
+			DeliveryMode.NON_PERSISTENT, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE, true, true);
+
+	/**
+	 * EMS reliable delivery without message IDs and timestamps, the server
+	 * never acknowledges the send.
+	 */
+	public static final DeliveryProfile RELIABLE = new DeliveryProfile("reliable",
+			Tibjms.RELIABLE_DELIVERY, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE, true, true);
+
+	private static final DeliveryProfile[] PROFILES = {PERSISTENT, NON_PERSISTENT, RELIABLE};
+
+	private final String name;
+	private final int deliveryMode;
+	private final int priority;
+	private final long timeToLive;
+	private final boolean disableMessageId;
+	private final boolean disableMessageTimestamp;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name profile name
+	 * @param deliveryMode JMS or EMS delivery mode
+	 * @param priority message priority 0-9
+	 * @param timeToLive time to live in milliseconds, 0 never expires
+	 * @param disableMessageId do not generate message IDs
+	 * @param disableMessageTimestamp do not generate message timestamps
+	 */
+	public DeliveryProfile(final String name, final int deliveryMode, final int priority,
+			final long timeToLive, final boolean disableMessageId, final boolean disableMessageTimestamp) {
+
+		this.name = name;
+		this.deliveryMode = deliveryMode;
+		this.priority = priority;
+		this.timeToLive = timeToLive;
+		this.disableMessageId = disableMessageId;
+		this.disableMessageTimestamp = disableMessageTimestamp;
+	}
+
+	/**
+	 * Find a built in profile by name.
+	 *
+	 * @param name profile name
+	 * @return profile
+	 * @throws IllegalArgumentException if there is no such profile
+	 */
+	public static DeliveryProfile valueOf(final String name) {
+		for (DeliveryProfile profile : PROFILES) {
+			if (profile.name.equals(name.toLowerCase(Locale.ROOT))) {
+				return profile;
+			}
+		}
+		throw new IllegalArgumentException("Unknown delivery profile \"" + name + "\"");
+	}
+
+	/**
+	 * Get all built in profiles.
+	 *
+	 * @return profiles
+	 */
+	public static DeliveryProfile[] values() {
+		return PROFILES.clone();
+	}
+
+	/**
+	 * Copy of this profile with a different priority.
+	 *
+	 * @param newPriority message priority 0-9
+	 * @return profile
+	 */
+	public DeliveryProfile withPriority(final int newPriority) {
+		return new DeliveryProfile(name, deliveryMode, newPriority,
+				timeToLive, disableMessageId, disableMessageTimestamp);
+	}
+
+	/**
+	 * Copy of this profile with a different time to live.
+	 *
+	 * @param newTimeToLive time to live in milliseconds, 0 never expires
+	 * @return profile
+	 */
+	public DeliveryProfile withTimeToLive(final long newTimeToLive) {
+		return new DeliveryProfile(name, deliveryMode, priority,
+				newTimeToLive, disableMessageId, disableMessageTimestamp);
+	}
+
+	/**
+	 * Get the profile name.
+	 *
+	 * @return profile name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the delivery mode.
+	 *
+	 * @return JMS or EMS delivery mode
+	 */
+	public int getDeliveryMode() {
+		return deliveryMode;
+	}
+
+	/**
+	 * Get the message priority.
+	 *
+	 * @return message priority 0-9
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Get the message time to live.
+	 *
+	 * @return time to live in milliseconds, 0 never expires
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Whether message IDs are not generated.
+	 *
+	 * @return true to not generate message IDs
+	 */
+	public boolean isDisableMessageId() {
+		return disableMessageId;
+	}
+
+	/**
+	 * Whether message timestamps are not generated.
+	 *
+	 * @return true to not generate message timestamps
+	 */
+	public boolean isDisableMessageTimestamp() {
+		return disableMessageTimestamp;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -5,8 +5,11 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,6 +78,22 @@ public class DirectoryWatcher {
 		listeners.add(listener);
 	}
 
+	/**
+	 * Forget a file so it is reported as added again on the next scan.
+	 *
+	 * @param file the file
+	 */
+	public void forget(final File file) {
+		watchThread.forget(file.getAbsolutePath());
+	}
+
+	/**
+	 * Scan once on the calling thread, for tests.
+	 */
+	void scan() {
+		watchThread.scan();
+	}
+
 	/**
 	 * Start.
 	 */
@@ -94,7 +113,7 @@ public class DirectoryWatcher {
 	 */
 	class WatchThread extends Thread {
 		private boolean running = true;
-		private Map<String, Long> fileModificationTimes = new HashMap<String, Long>();
+		private Map<String, Long> fileModificationTimes = new ConcurrentHashMap<String, Long>();
 		private List<String> deletedFiles = new ArrayList<String>();
 
 		/* (non-Javadoc)
@@ -106,7 +125,7 @@ public class DirectoryWatcher {
 			try {
 				while (running) {
 
-					scanDirectory(baseDirectory);
+					scan();
 
 					LOG.trace("Sleeping for {} ms.", interval);
 					Thread.sleep(interval);
@@ -118,68 +137,72 @@ public class DirectoryWatcher {
 		}
 
 		/**
-		 * Scan directory for changes.
-		 *
-		 * @param directory directory
+		 * Scan the whole tree for changes. Tracked files that were not found
+		 * in any directory, including directories that have gone, are
+		 * reported deleted.
 		 */
-		public void scanDirectory(final File directory) {
-			LOG.trace("Scanning directory \"{}\"", directory.getAbsolutePath());
-			File[] fileArray = directory.listFiles(extensionFileFilter);
+		public void scan() {
+			Set<String> foundFiles = new HashSet<String>();
+			scanDirectory(baseDirectory, foundFiles);
 
-			// For each previously watched files
+			// can't delete while iterating, keep track instead
 			for (String name : fileModificationTimes.keySet()) {
-				File file = null;
-				Long fileModificationTime = null;
-
-				// Look for the physical file
-				for (int i = 0; i < fileArray.length; i++) {
-					file = fileArray[i];
-					if (name.equals(file.getAbsolutePath())) {
-						fileModificationTime = file.lastModified();
-						break;
-					}
-				}
-
-				// if found
-				if (fileModificationTime != null) {
-					Long lastModificationTime = fileModificationTimes.get(name);
-					if (lastModificationTime.equals(fileModificationTime)) {
-						LOG.debug("File \"{}\" has not changed.", name);
-
-					} else {
-						LOG.debug("File \"{}\" changed.", name);
-						fileModificationTimes.put(name, fileModificationTime);
-						notifyListeners(FileEvent.MODIFIED, file);
-					}
-
-				// can't delete while iterating, keep track instead
-				} else {
+				if (!foundFiles.contains(name)) {
 					deletedFiles.add(name);
 				}
 			}
 
-			// Do deletes
+			// Do deletes, files forgotten meanwhile are not reported
 			for (String name : deletedFiles) {
-				LOG.debug("File \"{}\" deleted.", name);
-				fileModificationTimes.remove(name);
-				notifyListeners(FileEvent.DELETED, new File(name));
+				if (fileModificationTimes.remove(name) != null) {
+					LOG.debug("File \"{}\" deleted.", name);
+					notifyListeners(FileEvent.DELETED, new File(name));
+				}
 			}
 			deletedFiles.clear();
+		}
+
+		/**
+		 * Scan directory for added and changed files.
+		 *
+		 * @param directory directory
+		 * @param foundFiles paths of the files found so far in this scan
+		 */
+		public void scanDirectory(final File directory, final Set<String> foundFiles) {
+			LOG.trace("Scanning directory \"{}\"", directory.getAbsolutePath());
+			File[] fileArray = directory.listFiles(extensionFileFilter);
+			if (fileArray == null) {
+				// removed since its parent was listed
+				return;
+			}
 
-			// Do Additions
 			for (File file : fileArray) {
 				if (file.isDirectory()) {
 					if (!file.getName().startsWith(".")) {
-						scanDirectory(file);
+						scanDirectory(file, foundFiles);
 					}
 					continue;
 				}
 
 				String name = file.getAbsolutePath();
-				if (!fileModificationTimes.containsKey(name)) {
+				foundFiles.add(name);
+				Long fileModificationTime = file.lastModified();
+				Long lastModificationTime = fileModificationTimes.get(name);
+
+				// not tracked, or forgotten meanwhile
+				if (lastModificationTime == null) {
 					LOG.debug("File \"{}\" added.", name);
+					// tracked before listeners run, so they can forget it again
+					fileModificationTimes.put(name, fileModificationTime);
 					notifyListeners(FileEvent.ADDED, file);
-					fileModificationTimes.put(name, file.lastModified());
+
+				} else if (lastModificationTime.equals(fileModificationTime)) {
+					LOG.debug("File \"{}\" has not changed.", name);
+
+				} else {
+					LOG.debug("File \"{}\" changed.", name);
+					fileModificationTimes.put(name, fileModificationTime);
+					notifyListeners(FileEvent.MODIFIED, file);
 				}
 			}
 		}
@@ -211,6 +234,15 @@ public class DirectoryWatcher {
 			}
 		}
 
+		/**
+		 * Forget a file, may be called from any thread.
+		 *
+		 * @param name absolute path
+		 */
+		public void forget(final String name) {
+			fileModificationTimes.remove(name);
+		}
+
 		/**
 		 * Stop watching.
 		 */
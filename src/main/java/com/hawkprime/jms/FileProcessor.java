@@ -1,13 +1,28 @@
 package com.hawkprime.jms;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import javax.jms.JMSException;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +33,13 @@ public class FileProcessor implements DirectoryListener {
 	private TibcoQueue tibcoQueue;
 	private String sourceDirectory;
 	private boolean hasHeaders;
+	private ExecutorService executor;
+	private Semaphore permits;
+	private Set<String> inFlight = ConcurrentHashMap.newKeySet();
+	private XmlHeaderExtractor xmlHeaderExtractor;
+	private PayloadCodec codec;
+	private long compressThreshold;
+	private Map<String, DeliveryProfile> routes = new LinkedHashMap<String, DeliveryProfile>();
 
 	/**
 	 * Constructor.
@@ -55,6 +77,118 @@ public class FileProcessor implements DirectoryListener {
 		return targetDirectory.getAbsolutePath();
 	}
 
+	/**
+	 * Set the executor used to process files. When set each file is read,
+	 * sent and moved as its own task, otherwise files are processed on the
+	 * calling thread one at a time. A task waits for an in-flight permit
+	 * before it reads its file, so no more than the limit of payloads are
+	 * held in memory at once.
+	 *
+	 * @param executor executor, or null to process on the calling thread
+	 * @param maxInFlight maximum number of files read and not yet done
+	 */
+	public void setExecutor(final ExecutorService executor, final int maxInFlight) {
+		this.executor = executor;
+		this.permits = new Semaphore(Math.max(1, maxInFlight));
+	}
+
+	/**
+	 * Set the extractor used to add headers from the payload of
+	 * <code>.xml</code> files.
+	 *
+	 * @param xmlHeaderExtractor extractor, or null for none
+	 */
+	public void setXmlHeaderExtractor(final XmlHeaderExtractor xmlHeaderExtractor) {
+		this.xmlHeaderExtractor = xmlHeaderExtractor;
+	}
+
+	/**
+	 * Compress files at least the threshold in size, they are sent as bytes
+	 * messages. Files are streamed through the codec from disk, after any
+	 * header block.
+	 *
+	 * @param codec codec, or null to not compress
+	 * @param threshold smallest file size in bytes that is compressed
+	 */
+	public void setCompression(final PayloadCodec codec, final long threshold) {
+		this.codec = codec;
+		this.compressThreshold = threshold;
+	}
+
+	/**
+	 * Use a delivery profile for files under a source sub-directory, the
+	 * longest matching directory wins. Other files use the queue's profile.
+	 *
+	 * @param directory directory relative to the source directory
+	 * @param profile delivery profile
+	 */
+	public void addRoute(final String directory, final DeliveryProfile profile) {
+		String prefix = "/" + directory.replace(File.separatorChar, '/').replaceAll("^/+|/+$", "") + "/";
+		LOG.info("Files under \"{}\" use the {} delivery profile", prefix, profile);
+		routes.put(prefix, profile);
+	}
+
+	/**
+	 * Find the delivery profile for a file.
+	 *
+	 * @param relativePath path relative to the source directory
+	 * @return delivery profile
+	 */
+	private DeliveryProfile routeProfile(final String relativePath) {
+		String path = relativePath.replace(File.separatorChar, '/');
+		String matched = null;
+		DeliveryProfile profile = tibcoQueue.getDeliveryProfile();
+		for (Entry<String, DeliveryProfile> route : routes.entrySet()) {
+			String prefix = route.getKey();
+			if (path.startsWith(prefix) && (matched == null || prefix.length() > matched.length())) {
+				matched = prefix;
+				profile = route.getValue();
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * Process the file on the executor if one is set.
+	 *
+	 * @param file file
+	 */
+	private void submitFile(final File file) {
+		if (executor == null) {
+			processFile(file);
+			return;
+		}
+
+		final String name = file.getAbsolutePath();
+		if (!inFlight.add(name)) {
+			LOG.debug("File \"{}\" is already being processed.", name);
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						permits.acquire();
+						try {
+							processFile(file);
+						} finally {
+							permits.release();
+						}
+					} catch (InterruptedException e) {
+						LOG.warn("Interrupted, leaving file \"{}\" at existing location.", name);
+					} finally {
+						inFlight.remove(name);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(name);
+			LOG.warn("Shutting down, leaving file \"{}\" at existing location.", name);
+		}
+	}
+
 	/**
 	 * Process the file.
 	 *
@@ -67,11 +201,34 @@ public class FileProcessor implements DirectoryListener {
 
 			String relativePath = file.getAbsolutePath().replace(sourceDirectory, "");
 			LOG.info("Processing file \"{}\"", relativePath);
-			if (hasHeaders) {
-				Map<String, Object> message = splitMessage(FileUtils.readFileToString(file));
-				tibcoQueue.sendMessage((String) message.get("message"), (Map<String, String>) message.get("headers"));
+			DeliveryProfile profile = routeProfile(relativePath);
+			boolean compress = codec != null && file.length() >= compressThreshold;
+
+			if (compress) {
+				// one pass over the file, headers are picked up while the payload is compressed
+				tibcoQueue.sendCompressed(new TibcoQueue.PayloadWriter() {
+					@Override
+					public Map<String, String> write(final OutputStream out) throws IOException {
+						return writePayload(file, out);
+					}
+				}, codec, Collections.<String, String>emptyMap(), profile);
+
 			} else {
-				tibcoQueue.sendMessage(FileUtils.readFileToString(file));
+				String text = FileUtils.readFileToString(file);
+				Map<String, String> headers = Collections.<String, String>emptyMap();
+				if (hasHeaders) {
+					Map<String, Object> message = splitMessage(text);
+					text = (String) message.get("message");
+					headers = (Map<String, String>) message.get("headers");
+				}
+
+				if (isXmlHeaderFile(file)) {
+					// headers at the top of the file win over the ones in the payload
+					Map<String, String> xmlHeaders = xmlHeaderExtractor.extract(new StringReader(text));
+					xmlHeaders.putAll(headers);
+					headers = xmlHeaders;
+				}
+				tibcoQueue.sendMessage(text, headers, profile);
 			}
 			LOG.info("Message published to queue from file \"{}\"", relativePath);
 
@@ -87,6 +244,43 @@ public class FileProcessor implements DirectoryListener {
 		moveFileToTargetDirectory(file);
 	}
 
+	private boolean isXmlHeaderFile(final File file) {
+		return xmlHeaderExtractor != null && file.getName().toLowerCase().endsWith(".xml");
+	}
+
+	/**
+	 * Write the payload of a file as it is on disk, after any header block.
+	 * The XML header extractor reads through to the output, so the file is
+	 * read once however far into the document the headers are.
+	 *
+	 * @param file file
+	 * @param out output
+	 * @return headers from the header block and the XML payload
+	 * @throws IOException I/O exception
+	 */
+	private Map<String, String> writePayload(final File file, final OutputStream out) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			Map<String, String> headers = new HashMap<String, String>();
+			if (hasHeaders) {
+				HeaderBlock.read(in, headers);
+			}
+
+			if (isXmlHeaderFile(file)) {
+				// headers at the top of the file win over the ones in the payload
+				Map<String, String> xmlHeaders = xmlHeaderExtractor.extract(new TeeInputStream(in, out));
+				xmlHeaders.putAll(headers);
+				headers = xmlHeaders;
+			}
+
+			// whatever the extractor did not read
+			IOUtils.copy(in, out);
+			return headers;
+		} finally {
+			in.close();
+		}
+	}
+
 	private Map<String, Object> splitMessage(String text) {
 		Map<String, Object> message = new HashMap<String, Object>();
 		StringBuilder messageText = new StringBuilder();
@@ -123,12 +317,12 @@ public class FileProcessor implements DirectoryListener {
 
 	@Override
 	public void fileAdded(final File file) {
-		processFile(file);
+		submitFile(file);
 	}
 
 	@Override
 	public void fileModified(final File file) {
-		processFile(file);
+		submitFile(file);
 	}
 
 	@Override
@@ -153,7 +347,8 @@ public class FileProcessor implements DirectoryListener {
 		} else {
 			File fileParentDirectory = targetFile.getParentFile();
 			if (!fileParentDirectory.exists()) {
-				if (!fileParentDirectory.mkdirs()) {
+				// another task may create the same directory concurrently
+				if (!fileParentDirectory.mkdirs() && !fileParentDirectory.isDirectory()) {
 					LOG.error("Unable to create target directory structure \"{}\"",
 							fileParentDirectory.getAbsolutePath());
 					return;
@@ -0,0 +1,455 @@
+package com.hawkprime.jms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sits between the directory watcher and the file processor and decides
+ * which pending file is published next. Files are grouped by priority and
+ * then by the first sub-directory of the source, the highest priority is
+ * always served first and within a priority the policy picks the group.
+ * Only a bounded number of files are kept pending, when full a new file
+ * evicts the newest file of the largest group at a lower priority, or at
+ * its own priority when its group is smaller, or a newer file of its own
+ * group, and the watcher is told to report the evicted file again on a
+ * later scan.
+ */
+public class FileScheduler implements DirectoryListener {
+	private static final Logger LOG = LoggerFactory.getLogger(FileScheduler.class);
+	private static final int MAX_HEADER_LINES = 100;
+	private static final String ROOT_GROUP = "";
+
+	/**
+	 * How a group is picked within a priority.
+	 */
+	public enum Policy { OLDEST_FIRST, ROUND_ROBIN }
+
+	private static final Comparator<Pending> BY_AGE = new Comparator<Pending>() {
+		@Override
+		public int compare(final Pending a, final Pending b) {
+			int result = Long.compare(a.modified, b.modified);
+			return result != 0 ? result : a.path.compareTo(b.path);
+		}
+	};
+
+	private DirectoryWatcher watcher;
+	private DirectoryListener listener;
+	private String sourceDirectory;
+	private Policy policy;
+	private int capacity;
+	private ExecutorService executor;
+	private Semaphore permits;
+	private Thread dispatchThread;
+	private volatile boolean running;
+
+	private Map<Pattern, Integer> pathPriorities = new LinkedHashMap<Pattern, Integer>();
+	private String priorityHeader;
+
+	private TreeMap<Integer, Level> levels = new TreeMap<Integer, Level>(Collections.reverseOrder());
+	private Set<String> scheduledPaths = new HashSet<String>();
+	private int pendingCount;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param watcher watcher reporting the files, told to forget evicted files
+	 * @param listener listener files are dispatched to
+	 * @param policy group policy
+	 * @param capacity maximum number of pending files
+	 * @param maxInFlight maximum number of files dispatched and not yet done
+	 */
+	public FileScheduler(final DirectoryWatcher watcher, final DirectoryListener listener,
+			final Policy policy, final int capacity, final int maxInFlight) {
+
+		this.watcher = watcher;
+		this.listener = listener;
+		this.sourceDirectory = watcher.getDirectory();
+		this.policy = policy;
+		this.capacity = Math.max(1, capacity);
+		this.permits = new Semaphore(Math.max(1, maxInFlight));
+	}
+
+	/**
+	 * Set the executor files are dispatched on. When not set files are
+	 * dispatched one at a time on the scheduler's thread.
+	 *
+	 * @param executor executor, or null
+	 */
+	public void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Give files whose path relative to the source directory matches a
+	 * pattern a priority, the first matching pattern wins. Unmatched files
+	 * have priority 0.
+	 *
+	 * @param pattern regular expression
+	 * @param priority priority, higher is sooner
+	 */
+	public void addPathPriority(final String pattern, final int priority) {
+		pathPriorities.put(Pattern.compile(pattern), priority);
+	}
+
+	/**
+	 * Take the priority from a header at the top of the file, used when no
+	 * path pattern matches.
+	 *
+	 * @param header header name
+	 */
+	public void setPriorityHeader(final String header) {
+		this.priorityHeader = header;
+	}
+
+	/**
+	 * Start dispatching.
+	 */
+	public void start() {
+		running = true;
+		dispatchThread = new Thread("scheduler") {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		dispatchThread.start();
+	}
+
+	/**
+	 * Stop dispatching, files already dispatched are not interrupted.
+	 */
+	public void stop() {
+		running = false;
+		if (dispatchThread != null) {
+			dispatchThread.interrupt();
+		}
+	}
+
+	/**
+	 * Get the number of pending files.
+	 *
+	 * @return pending files
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	@Override
+	public void fileAdded(final File file) {
+		schedule(file);
+	}
+
+	@Override
+	public void fileModified(final File file) {
+		schedule(file);
+	}
+
+	@Override
+	public void fileDeleted(final File file) {
+		/* ignore, dispatch skips files that are gone */
+	}
+
+	private void schedule(final File file) {
+		String path = file.getAbsolutePath();
+		synchronized (this) {
+			// pending or being published
+			if (scheduledPaths.contains(path)) {
+				return;
+			}
+		}
+
+		String relativePath = path.replace(sourceDirectory, "").replace(File.separatorChar, '/');
+		Pending pending = new Pending(path, file.lastModified(), priority(file, relativePath));
+		String group = group(relativePath);
+
+		synchronized (this) {
+			if (scheduledPaths.contains(path)) {
+				return;
+			}
+
+			if (pendingCount >= capacity && !makeRoom(pending, group)) {
+				LOG.debug("Scheduler full, file \"{}\" will be picked up on a later scan.", relativePath);
+				watcher.forget(file);
+				return;
+			}
+
+			Level level = levels.get(pending.priority);
+			if (level == null) {
+				level = new Level();
+				levels.put(pending.priority, level);
+			}
+			level.add(group, pending);
+			scheduledPaths.add(path);
+			pendingCount++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Make room by dropping the newest file of the largest group at the
+	 * lowest priority, if that is below the given one. Otherwise, so that one
+	 * busy group cannot hold every slot, drop the newest file of the largest
+	 * group at the same priority if it has at least two more files than the
+	 * group being added to. Failing that, drop the newest file of the file's
+	 * own group if the file is older, so a group keeps its oldest files.
+	 *
+	 * @param pending file being added
+	 * @param group group of the file being added
+	 * @return true if a file was evicted
+	 */
+	private boolean makeRoom(final Pending pending, final String group) {
+		Entry<Integer, Level> lowest = levels.lastEntry();
+		if (lowest == null || lowest.getKey() > pending.priority) {
+			return false;
+		}
+
+		Level level = lowest.getValue();
+		Pending evicted;
+		if (lowest.getKey() < pending.priority) {
+			evicted = level.removeNewest(level.largestGroup());
+		} else if (level.size(group) + 1 < level.size(level.largestGroup())) {
+			evicted = level.removeNewest(level.largestGroup());
+		} else if (level.size(group) > 0 && BY_AGE.compare(pending, level.newest(group)) < 0) {
+			evicted = level.removeNewest(group);
+		} else {
+			return false;
+		}
+
+		if (level.isEmpty()) {
+			levels.remove(lowest.getKey());
+		}
+		scheduledPaths.remove(evicted.path);
+		pendingCount--;
+		watcher.forget(new File(evicted.path));
+		LOG.debug("Evicted file \"{}\" to make room.", evicted.path);
+		return true;
+	}
+
+	private synchronized Pending next() throws InterruptedException {
+		while (levels.isEmpty()) {
+			wait();
+		}
+
+		Entry<Integer, Level> highest = levels.firstEntry();
+		Pending pending = highest.getValue().poll(policy);
+		if (highest.getValue().isEmpty()) {
+			levels.remove(highest.getKey());
+		}
+		pendingCount--;
+		return pending;
+	}
+
+	private synchronized void done(final String path) {
+		scheduledPaths.remove(path);
+	}
+
+	private void dispatch() {
+		try {
+			while (running) {
+				permits.acquire();
+				final File file = new File(next().path);
+				if (!file.isFile()) {
+					done(file.getPath());
+					permits.release();
+					continue;
+				}
+
+				Runnable task = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							listener.fileAdded(file);
+						} finally {
+							done(file.getPath());
+							permits.release();
+						}
+					}
+				};
+
+				if (executor == null) {
+					task.run();
+				} else {
+					try {
+						executor.execute(task);
+					} catch (RejectedExecutionException e) {
+						done(file.getPath());
+						permits.release();
+						LOG.warn("Shutting down, leaving file \"{}\" at existing location.", file.getAbsolutePath());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.debug("Scheduler stopped.");
+		}
+	}
+
+	private int priority(final File file, final String relativePath) {
+		for (Entry<Pattern, Integer> rule : pathPriorities.entrySet()) {
+			if (rule.getKey().matcher(relativePath).find()) {
+				return rule.getValue();
+			}
+		}
+
+		if (priorityHeader != null) {
+			String value = readHeader(file, priorityHeader);
+			if (value != null) {
+				try {
+					return Integer.parseInt(value.trim());
+				} catch (NumberFormatException e) {
+					LOG.warn("Invalid priority \"{}\" in file \"{}\"", value, relativePath);
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Read a header from the header block at the top of the file, stops at
+	 * the first line that is not a header.
+	 */
+	private String readHeader(final File file, final String name) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			String line;
+			for (int i = 0; i < MAX_HEADER_LINES && (line = reader.readLine()) != null; i++) {
+				int index = line.indexOf(':');
+				if (index == -1 || index != line.lastIndexOf(':')) {
+					break;
+				}
+				if (line.substring(0, index).equals(name)) {
+					return line.substring(index + 1);
+				}
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to read headers of \"{}\"", file.getAbsolutePath());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					/* ignore */
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String group(final String relativePath) {
+		int index = relativePath.indexOf('/', 1);
+		return index == -1 ? ROOT_GROUP : relativePath.substring(1, index);
+	}
+
+	/**
+	 * Pending file, only what ordering needs is kept.
+	 */
+	private static final class Pending {
+		private final String path;
+		private final long modified;
+		private final int priority;
+
+		Pending(final String path, final long modified, final int priority) {
+			this.path = path;
+			this.modified = modified;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * Pending files of one priority, grouped by sub-directory and ordered
+	 * by age within a group.
+	 */
+	private static final class Level {
+		private Map<String, TreeSet<Pending>> groups = new HashMap<String, TreeSet<Pending>>();
+		private Deque<String> rotation = new ArrayDeque<String>();
+
+		void add(final String group, final Pending pending) {
+			TreeSet<Pending> files = groups.get(group);
+			if (files == null) {
+				files = new TreeSet<Pending>(BY_AGE);
+				groups.put(group, files);
+				rotation.addLast(group);
+			}
+			files.add(pending);
+		}
+
+		Pending poll(final Policy policy) {
+			String group;
+			if (policy == Policy.ROUND_ROBIN) {
+				group = rotation.pollFirst();
+				rotation.addLast(group);
+			} else {
+				group = null;
+				Pending oldest = null;
+				for (Entry<String, TreeSet<Pending>> entry : groups.entrySet()) {
+					Pending first = entry.getValue().first();
+					if (oldest == null || BY_AGE.compare(first, oldest) < 0) {
+						oldest = first;
+						group = entry.getKey();
+					}
+				}
+			}
+			return remove(group, true);
+		}
+
+		Pending removeNewest(final String group) {
+			return remove(group, false);
+		}
+
+		Pending newest(final String group) {
+			return groups.get(group).last();
+		}
+
+		String largestGroup() {
+			String largest = null;
+			for (Entry<String, TreeSet<Pending>> entry : groups.entrySet()) {
+				if (largest == null || entry.getValue().size() > groups.get(largest).size()) {
+					largest = entry.getKey();
+				}
+			}
+			return largest;
+		}
+
+		int size(final String group) {
+			TreeSet<Pending> files = groups.get(group);
+			return files == null ? 0 : files.size();
+		}
+
+		private Pending remove(final String group, final boolean oldest) {
+			TreeSet<Pending> files = groups.get(group);
+			Pending pending = oldest ? files.pollFirst() : files.pollLast();
+			if (files.isEmpty()) {
+				groups.remove(group);
+				rotation.remove(group);
+			}
+			return pending;
+		}
+
+		boolean isEmpty() {
+			return groups.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.hawkprime.jms;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Checks <code>.xml</code> files before they are published. Files are parsed
+ * on a pool of threads while earlier files are being published, those that
+ * are not well formed, or not valid against the schema when one is set, are
+ * moved to the quarantine directory instead of being passed on. Other files
+ * are passed on unchecked. Files are passed on from the validator threads,
+ * so the listener should hand them off rather than publish them in place.
+ */
+public class FileValidator implements DirectoryListener {
+	private static final Logger LOG = LoggerFactory.getLogger(FileValidator.class);
+
+	private DirectoryListener listener;
+	private String sourceDirectory;
+	private File quarantineDirectory;
+	private boolean hasHeaders;
+	private Schema schema;
+	private ExecutorService executor;
+	private Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+	private SAXParserFactory parserFactory;
+	private ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>();
+	private ThreadLocal<Validator> validators = new ThreadLocal<Validator>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param listener listener valid files are passed on to
+	 * @param sourceDirectory source directory
+	 * @param quarantineDirectoryPath directory invalid files are moved to
+	 * @param hasHeaders files start with a header block that is skipped
+	 * @throws IOException if the quarantine directory does not exist
+	 */
+	public FileValidator(final DirectoryListener listener, final String sourceDirectory,
+			final String quarantineDirectoryPath, final boolean hasHeaders) throws IOException {
+
+		this.listener = listener;
+		this.sourceDirectory = sourceDirectory;
+		this.quarantineDirectory = new File(quarantineDirectoryPath).getCanonicalFile();
+		this.hasHeaders = hasHeaders;
+
+		if (!quarantineDirectory.isDirectory()) {
+			LOG.error("Path \"{}\" is not a directory.", quarantineDirectoryPath);
+			throw new IOException("Quarantine directory does not exist.");
+		}
+
+		parserFactory = SAXParserFactory.newInstance();
+		parserFactory.setNamespaceAware(true);
+		try {
+			parserFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			parserFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			parserFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		} catch (ParserConfigurationException | SAXException e) {
+			LOG.warn("Unable to disable external entities: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Compile the schema files are validated against. The compiled schema is
+	 * shared by all validator threads.
+	 *
+	 * @param schemaFile XSD file
+	 * @throws SAXException if the schema is not valid
+	 */
+	public void setSchema(final File schemaFile) throws SAXException {
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		schema = factory.newSchema(schemaFile);
+		LOG.info("Validating files against \"{}\"", schemaFile.getAbsolutePath());
+	}
+
+	/**
+	 * Get quarantine directory.
+	 *
+	 * @return directory
+	 */
+	public String getQuarantine() {
+		return quarantineDirectory.getAbsolutePath();
+	}
+
+	/**
+	 * Start the validator threads.
+	 *
+	 * @param threads number of threads
+	 */
+	public void start(final int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	/**
+	 * Stop the validator threads, files being validated are finished.
+	 */
+	public void stop() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	@Override
+	public void fileAdded(final File file) {
+		submitFile(file);
+	}
+
+	@Override
+	public void fileModified(final File file) {
+		submitFile(file);
+	}
+
+	@Override
+	public void fileDeleted(final File file) {
+		listener.fileDeleted(file);
+	}
+
+	private void submitFile(final File file) {
+		if (!file.getName().toLowerCase().endsWith(".xml")) {
+			listener.fileAdded(file);
+			return;
+		}
+
+		final String name = file.getAbsolutePath();
+		if (!inFlight.add(name)) {
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (validate(file)) {
+							listener.fileAdded(file);
+						}
+					} finally {
+						inFlight.remove(name);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(name);
+			LOG.warn("Shutting down, leaving file \"{}\" at existing location.", name);
+		}
+	}
+
+	/**
+	 * Validate a file, quarantine it if it is not valid.
+	 *
+	 * @param file file
+	 * @return true if valid
+	 */
+	private boolean validate(final File file) {
+		String relativePath = file.getAbsolutePath().replace(sourceDirectory, "");
+		try {
+			if (hasHeaders) {
+				// parse the bytes after the header block, the encoding comes from the XML declaration
+				InputStream in = new BufferedInputStream(new FileInputStream(file));
+				try {
+					HeaderBlock.read(in, null);
+					if (schema != null) {
+						validator().validate(new StreamSource(in, file.toURI().toString()));
+					} else {
+						InputSource source = new InputSource(in);
+						source.setSystemId(file.toURI().toString());
+						parser().parse(source, new DefaultHandler());
+					}
+				} finally {
+					in.close();
+				}
+
+			} else if (schema != null) {
+				validator().validate(new StreamSource(file));
+			} else {
+				parser().parse(file, new DefaultHandler());
+			}
+			return true;
+
+		} catch (SAXException e) {
+			LOG.warn("File \"{}\" is not valid, quarantining: {}", relativePath, e.getMessage());
+			quarantine(file, relativePath);
+			return false;
+
+		} catch (IOException e) {
+			if (!file.exists()) {
+				LOG.debug("File \"{}\" has gone, skipping.", relativePath);
+				return false;
+			}
+			// the watcher reports an unchanged file only once, it is retried when modified
+			LOG.error("Unable to read file \"{}\", leaving at existing location.", relativePath);
+			return false;
+		}
+	}
+
+	private SAXParser parser() throws SAXException {
+		SAXParser parser = parsers.get();
+		if (parser == null) {
+			try {
+				parser = parserFactory.newSAXParser();
+			} catch (ParserConfigurationException e) {
+				throw new SAXException(e);
+			}
+			parsers.set(parser);
+		} else {
+			parser.reset();
+		}
+		return parser;
+	}
+
+	private Validator validator() throws SAXException {
+		Validator validator = validators.get();
+		if (validator == null) {
+			validator = schema.newValidator();
+			validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+			validators.set(validator);
+		}
+		return validator;
+	}
+
+	private void quarantine(final File sourceFile, final String relativePath) {
+		File targetFile = new File(quarantineDirectory.getAbsolutePath() + relativePath);
+		File parentDirectory = targetFile.getParentFile();
+		if (!parentDirectory.mkdirs() && !parentDirectory.isDirectory()) {
+			LOG.error("Unable to create quarantine directory structure \"{}\"", parentDirectory.getAbsolutePath());
+			return;
+		}
+
+		if (targetFile.exists() && !targetFile.delete()) {
+			LOG.error("Unable to delete existing file \"{}\"", targetFile.getAbsolutePath());
+			return;
+		}
+
+		if (!sourceFile.renameTo(targetFile)) {
+			LOG.error("Unable to move file from \"{}\" to \"{}\"",
+					sourceFile.getAbsoluteFile(), targetFile.getAbsolutePath());
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.hawkprime.jms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Reads the <code>Name: Value</code> header block at the top of a file
+ * straight from its bytes, so the payload after it can be streamed as it is
+ * on disk. The block ends at an empty line, which is consumed, or at the
+ * first line that is not a header, which is left for the payload. Header
+ * lines are UTF-8, a line longer than {@value #MAX_LINE} bytes ends the
+ * block.
+ */
+final class HeaderBlock {
+	private static final int MAX_LINE = 8192;
+
+	private HeaderBlock() {
+		/* empty */
+	}
+
+	/**
+	 * Read the header block, the stream is left at the first payload byte.
+	 *
+	 * @param in stream at the start of the file, must support mark
+	 * @param headers headers found are put here, or null to skip them
+	 * @throws IOException I/O exception
+	 */
+	static void read(final InputStream in, final Map<String, String> headers) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while (true) {
+			in.mark(MAX_LINE + 1);
+			line.reset();
+			boolean ended = false;
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					ended = true;
+					break;
+				}
+				if (line.size() == MAX_LINE) {
+					in.reset();
+					return;
+				}
+				line.write(b);
+			}
+
+			String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+			if (text.endsWith("\r")) {
+				text = text.substring(0, text.length() - 1);
+			}
+			if (text.trim().length() == 0) {
+				// empty line, no more headers
+				return;
+			}
+
+			int index = text.indexOf(":");
+			if (!ended || index == -1 || index != text.lastIndexOf(":")) {
+				in.reset();
+				return;
+			}
+
+			if (headers != null) {
+				String[] components = text.split(":\\s*");
+				headers.put(components[0], components.length > 1 ? components[1] : "");
+			}
+		}
+	}
+}
@@ -1,6 +1,14 @@
 package com.hawkprime.jms;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.JMSException;
 
@@ -14,6 +22,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
 
 /**
  * Main.
@@ -25,7 +34,26 @@ public final class JmsPublisher {
 	private static final String SSL_CLIENT_OPT = "ssl-client-key";
 	private static final String SSL_CA_OPT = "ssl-ca";
 	private static final String SSL_SERVER_OPT = "ssl-server-key";
+	private static final String CONCURRENCY_OPT = "concurrency";
+	private static final String STRIPE_OPT = "stripe-policy";
+	private static final String PROFILE_OPT = "profile";
+	private static final String ROUTE_OPT = "route";
+	private static final String PRIORITY_OPT = "priority";
+	private static final String TTL_OPT = "ttl";
+	private static final String XML_HEADER_OPT = "xml-header";
+	private static final String SCHEDULE_OPT = "schedule";
+	private static final String SCHEDULE_PRIORITY_OPT = "schedule-priority";
+	private static final String PRIORITY_HEADER_OPT = "priority-header";
+	private static final String PENDING_LIMIT_OPT = "pending-limit";
+	private static final String COMPRESS_OPT = "compress";
+	private static final String COMPRESS_THRESHOLD_OPT = "compress-threshold";
+	private static final String VALIDATE_OPT = "validate";
+	private static final String SCHEMA_OPT = "schema";
+	private static final String QUARANTINE_OPT = "quarantine";
+	private static final String VALIDATORS_OPT = "validators";
+	private static final int MAX_PRIORITY = 9;
 	private static final String FILE_ARG = "file";
+	private static final int SHUTDOWN_WAIT_SECONDS = 30;
 
 	private JmsPublisher() {
 		/* empty */
@@ -42,14 +70,15 @@ public final class JmsPublisher {
 		LOG.info("TibCo Message Publisher v1.2.0-m075878");
 
 		CommandLine cmd = parseCommandLine(args);
+		int concurrency = parseConcurrency(cmd.getOptionValue(CONCURRENCY_OPT, "1"));
 
 		final TibcoQueue tibcoQueue = new TibcoQueue(
-					cmd.getOptionValue(SERVER_OPT),
+					Arrays.asList(cmd.getOptionValues(SERVER_OPT)),
 					cmd.getOptionValue("user"),
 					cmd.getOptionValue("pass"),
 					cmd.getOptionValue("queue"));
 
-		if (isSSLConnection(cmd.getOptionValue(SERVER_OPT))) {
+		if (isSSLConnection(cmd.getOptionValues(SERVER_OPT))) {
 			tibcoQueue.setSSLSettings(
 					cmd.getOptionValue(SSL_PASS_OPT),
 					cmd.getOptionValue(SSL_CLIENT_OPT),
@@ -57,6 +86,10 @@ public final class JmsPublisher {
 					cmd.getOptionValue(SSL_SERVER_OPT));
 		}
 
+		tibcoQueue.setSessionCount(concurrency);
+		tibcoQueue.setStripePolicy(parseStripePolicy(cmd.getOptionValue(STRIPE_OPT, "round-robin")));
+		tibcoQueue.setDeliveryProfile(parseProfile(cmd.getOptionValue(PROFILE_OPT, "persistent"), cmd));
+
 		try {
 			tibcoQueue.connect();
 		} catch (JMSException ex) {
@@ -64,9 +97,26 @@ public final class JmsPublisher {
 			return;
 		}
 
+		// one virtual thread per file, the session pools limit how many are sending;
+		// validator threads always hand files off so they never wait on a send
+		final int inFlightLimit = concurrency * cmd.getOptionValues(SERVER_OPT).length;
+		final boolean validate = cmd.hasOption(VALIDATE_OPT) || cmd.hasOption(SCHEMA_OPT);
+		final ExecutorService executor = inFlightLimit > 1 || validate
+				? Executors.newVirtualThreadPerTaskExecutor() : null;
+
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
+				if (executor != null) {
+					executor.shutdown();
+					try {
+						if (!executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+							LOG.warn("Timed out waiting for in-flight files.");
+						}
+					} catch (InterruptedException e) {
+						LOG.warn("Interrupted waiting for in-flight files.");
+					}
+				}
 				tibcoQueue.close();
 				LOG.info("Done.");
 			}
@@ -81,11 +131,50 @@ public final class JmsPublisher {
 			FileProcessor fileProcessor = new FileProcessor(tibcoQueue,
 					watcher.getDirectory(), cmd.getOptionValue("target"), cmd.hasOption("headers"));
 
+			if (cmd.hasOption(XML_HEADER_OPT)) {
+				fileProcessor.setXmlHeaderExtractor(parseXmlHeaders(cmd.getOptionValues(XML_HEADER_OPT)));
+			}
+			if (cmd.hasOption(COMPRESS_OPT)) {
+				long threshold = parseCompressThreshold(cmd.getOptionValue(COMPRESS_THRESHOLD_OPT, "65536"));
+				fileProcessor.setCompression(parseCodec(cmd.getOptionValue(COMPRESS_OPT)), threshold);
+				LOG.info("Compressing files of {} bytes or more with {}", threshold, cmd.getOptionValue(COMPRESS_OPT));
+			}
+			if (cmd.hasOption(ROUTE_OPT)) {
+				for (String route : cmd.getOptionValues(ROUTE_OPT)) {
+					int index = route.lastIndexOf('=');
+					String directory = index == -1 ? "" : route.substring(0, index).replaceAll("^[/\\\\]+|[/\\\\]+$", "");
+					if (directory.trim().isEmpty()) {
+						System.err.println("\nCommand line error: Invalid route \"" + route + "\", use --profile for all files");
+						System.exit(1);
+					}
+					fileProcessor.addRoute(directory, parseProfile(route.substring(index + 1), cmd));
+				}
+			}
+
 			watcher.setInterval(5);
-			watcher.addListener(fileProcessor);
+			DirectoryListener publisher = fileProcessor;
+			if (cmd.hasOption(SCHEDULE_OPT)) {
+				FileScheduler scheduler = createScheduler(cmd, watcher, fileProcessor, inFlightLimit);
+				scheduler.setExecutor(executor);
+				scheduler.start();
+				publisher = scheduler;
+				LOG.info("Scheduling files {}", cmd.getOptionValue(SCHEDULE_OPT));
+			} else {
+				fileProcessor.setExecutor(executor, inFlightLimit);
+			}
+
+			if (validate) {
+				watcher.addListener(createValidator(cmd, watcher, publisher));
+			} else {
+				watcher.addListener(publisher);
+			}
 
 			LOG.info("Watching directory \"{}\" for {} files", watcher.getDirectory(), extension);
 			LOG.info("Moving proccessed files to \"{}\"", fileProcessor.getTarget());
+			LOG.info("Using the {} delivery profile", tibcoQueue.getDeliveryProfile());
+			if (executor != null) {
+				LOG.info("Publishing up to {} files concurrently", inFlightLimit);
+			}
 
 			watcher.start();
 
@@ -103,9 +192,16 @@ public final class JmsPublisher {
 			.longOpt(SERVER_OPT)
 			.hasArg()
 			.required()
-			.desc("TibCo server URL: \"tcp://192.168.56.202:7222\"")
+			.desc("TibCo server URL: \"tcp://192.168.56.202:7222\", repeat to stripe across servers")
 			.build());
 
+		options.addOption(Option.builder()
+				.argName("policy")
+				.longOpt(STRIPE_OPT)
+				.hasArg()
+				.desc("Spread sends across servers by round-robin or least-in-flight (default: round-robin)")
+				.build());
+
 		options.addOption(Option.builder("e")
 				.argName("file extension")
 				.longOpt("extension")
@@ -158,6 +254,116 @@ public final class JmsPublisher {
 				.desc("Top of file include headers that end at an empty line (Header Name: Header Value")
 				.build());
 
+		options.addOption(Option.builder("c")
+				.argName("count")
+				.longOpt(CONCURRENCY_OPT)
+				.hasArg()
+				.desc("Files published concurrently per server on virtual threads (default: 1)")
+				.build());
+
+		options.addOption(Option.builder("x")
+				.argName("name=/path")
+				.longOpt(XML_HEADER_OPT)
+				.hasArg()
+				.desc("Header from an XML element (/a/b) or attribute (/a/@b) of .xml files, can be repeated")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("policy")
+				.longOpt(SCHEDULE_OPT)
+				.hasArg()
+				.desc("Order pending files oldest-first or round-robin across sub-directories")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("regex=priority")
+				.longOpt(SCHEDULE_PRIORITY_OPT)
+				.hasArg()
+				.desc("Schedule files whose relative path matches sooner (higher first), can be repeated")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("name")
+				.longOpt(PRIORITY_HEADER_OPT)
+				.hasArg()
+				.desc("Schedule by the numeric value of this header when no path matches")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("count")
+				.longOpt(PENDING_LIMIT_OPT)
+				.hasArg()
+				.desc("Files kept pending by the scheduler (default: 10000)")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("codec")
+				.longOpt(COMPRESS_OPT)
+				.hasArg()
+				.desc("Send large files compressed as bytes messages: gzip or gzip-fast")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("bytes")
+				.longOpt(COMPRESS_THRESHOLD_OPT)
+				.hasArg()
+				.desc("Smallest file compressed (default: 65536)")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt(VALIDATE_OPT)
+				.desc("Quarantine .xml files that are not well formed instead of publishing them")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName(FILE_ARG)
+				.longOpt(SCHEMA_OPT)
+				.hasArg()
+				.desc("Also quarantine .xml files that are not valid against this XSD")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("directory")
+				.longOpt(QUARANTINE_OPT)
+				.hasArg()
+				.desc("Directory files that fail validation are moved to")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("count")
+				.longOpt(VALIDATORS_OPT)
+				.hasArg()
+				.desc("Validator threads (default: number of processors)")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("name")
+				.longOpt(PROFILE_OPT)
+				.hasArg()
+				.desc("Delivery profile: persistent, non-persistent or reliable (default: persistent)")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("directory=profile")
+				.longOpt(ROUTE_OPT)
+				.hasArg()
+				.desc("Delivery profile for files under a source sub-directory, can be repeated")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("0-9")
+				.longOpt(PRIORITY_OPT)
+				.hasArg()
+				.desc("Message priority (default: 4)")
+				.build());
+
+		options.addOption(Option.builder()
+				.argName("millis")
+				.longOpt(TTL_OPT)
+				.hasArg()
+				.desc("Message time to live, 0 never expires (default: 0)")
+				.build());
+
 		options.addOption(Option.builder()
 			.argName(FILE_ARG)
 			.longOpt(SSL_CA_OPT)
@@ -199,7 +405,7 @@ public final class JmsPublisher {
 			System.exit(1);
 		}
 
-		boolean isSSLConnection = isSSLConnection(cmd.getOptionValue(SERVER_OPT));
+		boolean isSSLConnection = isSSLConnection(cmd.getOptionValues(SERVER_OPT));
 
 		boolean hasAnySSLOption = cmd.hasOption(SSL_CA_OPT)
 			|| cmd.hasOption(SSL_SERVER_OPT)
@@ -225,7 +431,191 @@ public final class JmsPublisher {
 		return cmd;
 	}
 
-	private static boolean isSSLConnection(final String url) {
-		return url.startsWith("ssl:");
+	private static int parseConcurrency(final String value) {
+		try {
+			int concurrency = Integer.parseInt(value);
+			if (concurrency > 0) {
+				return concurrency;
+			}
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+
+		System.err.println("\nCommand line error: Invalid concurrency \"" + value + "\"");
+		System.exit(1);
+		return 1;
+	}
+
+	private static FileValidator createValidator(final CommandLine cmd, final DirectoryWatcher watcher,
+			final DirectoryListener publisher) throws IOException {
+
+		if (!cmd.hasOption(QUARANTINE_OPT)) {
+			System.err.println("\nCommand line error: Validation requires a quarantine directory");
+			System.exit(1);
+		}
+
+		FileValidator validator = new FileValidator(publisher, watcher.getDirectory(),
+				cmd.getOptionValue(QUARANTINE_OPT), cmd.hasOption("headers"));
+
+		if (cmd.hasOption(SCHEMA_OPT)) {
+			try {
+				validator.setSchema(new File(cmd.getOptionValue(SCHEMA_OPT)));
+			} catch (SAXException e) {
+				throw new IOException("Unable to load schema: " + e.getMessage(), e);
+			}
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			threads = Integer.parseInt(cmd.getOptionValue(VALIDATORS_OPT, String.valueOf(threads)));
+		} catch (NumberFormatException e) {
+			System.err.println("\nCommand line error: Invalid validators \"" + cmd.getOptionValue(VALIDATORS_OPT) + "\"");
+			System.exit(1);
+		}
+		validator.start(threads);
+
+		LOG.info("Moving files that fail validation to \"{}\"", validator.getQuarantine());
+		return validator;
+	}
+
+	private static PayloadCodec parseCodec(final String name) {
+		try {
+			return PayloadCodec.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			System.err.println("\nCommand line error: " + e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	private static long parseCompressThreshold(final String value) {
+		try {
+			long threshold = Long.parseLong(value);
+			if (threshold >= 0) {
+				return threshold;
+			}
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+
+		System.err.println("\nCommand line error: Invalid compress threshold \"" + value + "\"");
+		System.exit(1);
+		return 0;
+	}
+
+	private static FileScheduler createScheduler(final CommandLine cmd, final DirectoryWatcher watcher,
+			final FileProcessor fileProcessor, final int inFlightLimit) {
+
+		FileScheduler scheduler = null;
+		try {
+			FileScheduler.Policy policy = FileScheduler.Policy.valueOf(
+					cmd.getOptionValue(SCHEDULE_OPT).toUpperCase(Locale.ROOT).replace('-', '_'));
+			int pendingLimit = Integer.parseInt(cmd.getOptionValue(PENDING_LIMIT_OPT, "10000"));
+			scheduler = new FileScheduler(watcher, fileProcessor, policy, pendingLimit, inFlightLimit);
+
+			if (cmd.hasOption(SCHEDULE_PRIORITY_OPT)) {
+				for (String rule : cmd.getOptionValues(SCHEDULE_PRIORITY_OPT)) {
+					int index = rule.lastIndexOf('=');
+					if (index < 1) {
+						throw new IllegalArgumentException("Invalid schedule priority \"" + rule + "\"");
+					}
+					scheduler.addPathPriority(rule.substring(0, index), Integer.parseInt(rule.substring(index + 1)));
+				}
+			}
+
+			if (cmd.hasOption(PRIORITY_HEADER_OPT)) {
+				if (!cmd.hasOption("headers")) {
+					LOG.warn("Ignoring priority header, files do not contain headers.");
+				} else {
+					scheduler.setPriorityHeader(cmd.getOptionValue(PRIORITY_HEADER_OPT));
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("\nCommand line error: " + e.getMessage());
+			System.exit(1);
+		}
+		return scheduler;
+	}
+
+	private static XmlHeaderExtractor parseXmlHeaders(final String[] values) {
+		Map<String, String> paths = new LinkedHashMap<String, String>();
+		for (String value : values) {
+			int index = value.indexOf('=');
+			if (index < 1) {
+				System.err.println("\nCommand line error: Invalid XML header \"" + value + "\"");
+				System.exit(1);
+			}
+			String name = value.substring(0, index).trim();
+			if (!isPropertyName(name)) {
+				System.err.println("\nCommand line error: XML header name \"" + name
+						+ "\" is not a valid JMS property name (letters, digits, _ and $)");
+				System.exit(1);
+			}
+			paths.put(name, value.substring(index + 1));
+		}
+
+		try {
+			return new XmlHeaderExtractor(paths);
+		} catch (IllegalArgumentException e) {
+			System.err.println("\nCommand line error: " + e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	private static boolean isPropertyName(final String name) {
+		if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+			return false;
+		}
+		for (int i = 1; i < name.length(); i++) {
+			if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static DeliveryProfile parseProfile(final String name, final CommandLine cmd) {
+		DeliveryProfile profile = null;
+		try {
+			profile = DeliveryProfile.valueOf(name);
+			if (cmd.hasOption(PRIORITY_OPT)) {
+				int priority = Integer.parseInt(cmd.getOptionValue(PRIORITY_OPT));
+				if (priority < 0 || priority > MAX_PRIORITY) {
+					throw new IllegalArgumentException("Priority must be 0-9");
+				}
+				profile = profile.withPriority(priority);
+			}
+			if (cmd.hasOption(TTL_OPT)) {
+				long timeToLive = Long.parseLong(cmd.getOptionValue(TTL_OPT));
+				if (timeToLive < 0) {
+					throw new IllegalArgumentException("Time to live must not be negative");
+				}
+				profile = profile.withTimeToLive(timeToLive);
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("\nCommand line error: " + e.getMessage());
+			System.exit(1);
+		}
+		return profile;
+	}
+
+	private static TibcoQueue.StripePolicy parseStripePolicy(final String value) {
+		try {
+			return TibcoQueue.StripePolicy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			System.err.println("\nCommand line error: Invalid stripe policy \"" + value + "\"");
+			System.exit(1);
+			return null;
+		}
+	}
+
+	private static boolean isSSLConnection(final String[] urls) {
+		for (String url : urls) {
+			if (url.startsWith("ssl:")) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
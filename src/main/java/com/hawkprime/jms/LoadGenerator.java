@@ -0,0 +1,361 @@
+package com.hawkprime.jms;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.tibco.tibjms.TibjmsConnectionFactory;
+
+/**
+ * Capacity test. Runs the publisher in this JVM, writes synthetic files into
+ * its source directory at a fixed rate and times each file from creation
+ * until a consumer on the queue receives it. Ends with a throughput, latency,
+ * heap and GC report. The generator and consumer share the JVM, so heap and
+ * GC figures cover the whole harness, not the publisher alone.
+ */
+public final class LoadGenerator {
+	private static final String STAGING_DIRECTORY = ".loadgen";
+	private static final Pattern LOAD_TAG = Pattern.compile(
+			"<load run=\"([^\"]+)\" seq=\"(\\d+)\" created=\"(\\d+)\"");
+	private static final long NANOS_IN_SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final double MILLIS_IN_SECOND = 1000.0;
+	private static final long BYTES_IN_MB = 1024 * 1024;
+	private static final double P50 = 0.50;
+	private static final double P99 = 0.99;
+	private static final double P999 = 0.999;
+
+	private String runId = UUID.randomUUID().toString();
+	private long[] latencies;
+	private AtomicInteger received = new AtomicInteger();
+	private AtomicLong lastReceived = new AtomicLong();
+
+	private LoadGenerator(final int count) {
+		latencies = new long[count];
+		Arrays.fill(latencies, -1);
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 * @throws Exception on any failure
+	 */
+	// CHECKSTYLE IGNORE UncommentedMain
+	public static void main(final String[] args) throws Exception {
+		CommandLine cmd = parseCommandLine(args);
+		int count = (int) numberOption(cmd, "count", 10000, 1);
+		new LoadGenerator(count).run(cmd, count);
+	}
+
+	private void run(final CommandLine cmd, final int count) throws Exception {
+		int rate = (int) numberOption(cmd, "rate", 100, 1);
+		int size = (int) numberOption(cmd, "size", 4096, 0);
+		int fanOut = (int) numberOption(cmd, "fan-out", 0, 0);
+		int headerCount = (int) numberOption(cmd, "header-count", 0, 0);
+		int concurrency = (int) numberOption(cmd, "concurrency", 1, 1);
+		int interval = (int) numberOption(cmd, "interval", 2, 1);
+		long drainMillis = TimeUnit.SECONDS.toMillis(numberOption(cmd, "drain", 60, 0));
+		String server = cmd.getOptionValue("server");
+		String queue = cmd.getOptionValue("queue");
+
+		File source = new File(cmd.getOptionValue("source")).getCanonicalFile();
+		File staging = new File(source, STAGING_DIRECTORY);
+		FileUtils.forceMkdir(staging);
+
+		// consumer first so nothing published is missed
+		TibjmsConnectionFactory factory = new TibjmsConnectionFactory(server);
+		Connection consumerConnection = factory.createConnection(cmd.getOptionValue("user"), cmd.getOptionValue("pass"));
+		Session consumerSession = consumerConnection.createSession(false, Session.DUPS_OK_ACKNOWLEDGE);
+		MessageConsumer consumer = consumerSession.createConsumer(consumerSession.createQueue(queue));
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(final Message message) {
+				received(message);
+			}
+		});
+		consumerConnection.start();
+
+		TibcoQueue tibcoQueue = new TibcoQueue(server, cmd.getOptionValue("user"), cmd.getOptionValue("pass"), queue);
+		tibcoQueue.setSessionCount(concurrency);
+		tibcoQueue.connect();
+
+		ExecutorService executor = concurrency > 1 ? Executors.newVirtualThreadPerTaskExecutor() : null;
+		DirectoryWatcher watcher = new DirectoryWatcher(source.getPath(), ".xml");
+		FileProcessor fileProcessor = new FileProcessor(tibcoQueue, watcher.getDirectory(),
+				cmd.getOptionValue("target"), headerCount > 0);
+		fileProcessor.setExecutor(executor, concurrency);
+		if (cmd.hasOption("compress")) {
+			fileProcessor.setCompression(codecOption(cmd, "compress"), 0);
+		}
+		watcher.setInterval(interval);
+		watcher.addListener(fileProcessor);
+
+		Map<String, long[]> gcBefore = gcTotals();
+		watcher.start();
+
+		System.out.printf("Writing %d files of %d bytes at %d/sec into \"%s\"%n", count, size, rate, source);
+		String padding = padding(size);
+		long start = System.nanoTime();
+		long firstCreated = System.currentTimeMillis();
+		for (int seq = 0; seq < count; seq++) {
+			LockSupport.parkNanos(start + seq * NANOS_IN_SECOND / rate - System.nanoTime());
+			writeFile(source, staging, seq, fanOut, headerCount, padding);
+		}
+		long writeSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+		System.out.printf("Wrote %d files in %d s, waiting for delivery%n", count, writeSeconds);
+
+		long deadline = System.currentTimeMillis() + drainMillis;
+		while (received.get() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+
+		watcher.stop();
+		if (executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(drainMillis, TimeUnit.MILLISECONDS);
+		}
+		consumerConnection.close();
+		tibcoQueue.close();
+
+		report(count, firstCreated, gcBefore);
+	}
+
+	/**
+	 * Write a file to the staging directory and move it into place so the
+	 * watcher never sees a partial file.
+	 */
+	private void writeFile(final File source, final File staging, final int seq, final int fanOut,
+			final int headerCount, final String padding) throws IOException {
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < headerCount; i++) {
+			text.append("LoadHeader").append(i).append(": value").append(i).append('\n');
+		}
+		if (headerCount > 0) {
+			text.append('\n');
+		}
+		text.append("<load run=\"").append(runId).append("\" seq=\"").append(seq)
+				.append("\" created=\"").append(System.currentTimeMillis()).append("\">")
+				.append(padding).append("</load>\n");
+
+		String name = "load-" + seq + ".xml";
+		File staged = new File(staging, name);
+		FileUtils.writeStringToFile(staged, text.toString(), StandardCharsets.UTF_8);
+
+		File directory = fanOut > 0 ? new File(source, "feed" + (seq % fanOut)) : source;
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("Unable to create \"" + directory + "\"");
+		}
+		if (!staged.renameTo(new File(directory, name))) {
+			throw new IOException("Unable to move \"" + staged + "\" into \"" + directory + "\"");
+		}
+	}
+
+	private void received(final Message message) {
+		long now = System.currentTimeMillis();
+		try {
+			String text;
+			if (message instanceof TextMessage) {
+				text = ((TextMessage) message).getText();
+			} else if (message instanceof BytesMessage) {
+				text = decompress((BytesMessage) message);
+			} else {
+				return;
+			}
+
+			Matcher matcher = LOAD_TAG.matcher(text);
+			if (!matcher.find() || !runId.equals(matcher.group(1))) {
+				return;
+			}
+
+			int seq = Integer.parseInt(matcher.group(2));
+			if (seq < latencies.length && latencies[seq] < 0) {
+				latencies[seq] = now - Long.parseLong(matcher.group(3));
+				received.incrementAndGet();
+				lastReceived.set(now);
+			}
+		} catch (JMSException e) {
+			System.err.println("Unable to read message: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Unable to decompress message: " + e.getMessage());
+		}
+	}
+
+	private static String decompress(final BytesMessage message) throws JMSException, IOException {
+		byte[] body = new byte[(int) message.getBodyLength()];
+		message.readBytes(body);
+		if (!"gzip".equals(message.getStringProperty(PayloadCodec.ENCODING_PROPERTY))) {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+		return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(body)), StandardCharsets.UTF_8);
+	}
+
+	private void report(final int count, final long firstCreated, final Map<String, long[]> gcBefore) {
+		long[] sorted = new long[received.get()];
+		int n = 0;
+		for (long latency : latencies) {
+			if (latency >= 0 && n < sorted.length) {
+				sorted[n++] = latency;
+			}
+		}
+		Arrays.sort(sorted, 0, n);
+
+		double seconds = Math.max(1, lastReceived.get() - firstCreated) / MILLIS_IN_SECOND;
+		System.out.println();
+		System.out.printf("Files received    %d of %d%n", n, count);
+		System.out.printf("Sustained rate    %.1f files/sec%n", n / seconds);
+		if (n > 0) {
+			System.out.printf("Latency p50       %d ms%n", sorted[percentile(n, P50)]);
+			System.out.printf("Latency p99       %d ms%n", sorted[percentile(n, P99)]);
+			System.out.printf("Latency p999      %d ms%n", sorted[percentile(n, P999)]);
+			System.out.printf("Latency max       %d ms%n", sorted[n - 1]);
+		}
+
+		// generator, consumer and publisher share this JVM
+		System.out.println("Heap and GC figures below are for the whole harness.");
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		System.out.printf("Heap used         %d MB of %d MB committed, %d MB max%n",
+				heap.getUsed() / BYTES_IN_MB, heap.getCommitted() / BYTES_IN_MB, heap.getMax() / BYTES_IN_MB);
+
+		Map<String, long[]> gcAfter = gcTotals();
+		for (Map.Entry<String, long[]> gc : gcAfter.entrySet()) {
+			long[] before = gcBefore.containsKey(gc.getKey()) ? gcBefore.get(gc.getKey()) : new long[2];
+			System.out.printf("GC %-14s %d collections, %d ms%n", gc.getKey(),
+					gc.getValue()[0] - before[0], gc.getValue()[1] - before[1]);
+		}
+	}
+
+	private static int percentile(final int n, final double fraction) {
+		return Math.min(n - 1, (int) Math.ceil(fraction * n) - 1);
+	}
+
+	private static Map<String, long[]> gcTotals() {
+		Map<String, long[]> totals = new HashMap<String, long[]>();
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean collector : collectors) {
+			totals.put(collector.getName(), new long[] {collector.getCollectionCount(), collector.getCollectionTime()});
+		}
+		return totals;
+	}
+
+	/**
+	 * Parse a whole number option, exits if it is not a number or below the
+	 * minimum.
+	 */
+	private static long numberOption(final CommandLine cmd, final String name, final long defaultValue,
+			final long minimum) {
+
+		String value = cmd.getOptionValue(name, String.valueOf(defaultValue));
+		try {
+			long number = Long.parseLong(value);
+			if (number >= minimum && number <= Integer.MAX_VALUE) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+
+		System.err.println("\nCommand line error: --" + name + " must be a whole number of at least " + minimum
+				+ ", got \"" + value + "\"");
+		System.exit(1);
+		return defaultValue;
+	}
+
+	/**
+	 * Parse a codec option, exits if there is no such codec.
+	 */
+	private static PayloadCodec codecOption(final CommandLine cmd, final String name) {
+		try {
+			return PayloadCodec.valueOf(cmd.getOptionValue(name));
+		} catch (IllegalArgumentException e) {
+			System.err.println("\nCommand line error: " + e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	private static String padding(final int size) {
+		char[] chars = new char[Math.max(0, size)];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+
+	private static CommandLine parseCommandLine(final String[] args) {
+		Options options = new Options();
+		options.addOption(Option.builder("s").longOpt("server").hasArg().required()
+				.desc("TibCo server URL").build());
+		options.addOption(Option.builder("u").longOpt("user").hasArg().required()
+				.desc("TibCo user").build());
+		options.addOption(Option.builder("p").longOpt("pass").hasArg().required()
+				.desc("TibCo password").build());
+		options.addOption(Option.builder("q").longOpt("queue").hasArg().required()
+				.desc("Scratch queue, must not have other consumers").build());
+		options.addOption(Option.builder("d").longOpt("source").hasArg().required()
+				.desc("Source directory").build());
+		options.addOption(Option.builder("t").longOpt("target").hasArg().required()
+				.desc("Target directory").build());
+		options.addOption(Option.builder("n").longOpt("count").hasArg()
+				.desc("Files to write (default: 10000)").build());
+		options.addOption(Option.builder("r").longOpt("rate").hasArg()
+				.desc("Files written per second (default: 100)").build());
+		options.addOption(Option.builder().longOpt("size").hasArg()
+				.desc("Payload bytes per file (default: 4096)").build());
+		options.addOption(Option.builder().longOpt("fan-out").hasArg()
+				.desc("Spread files over this many sub-directories (default: 0, none)").build());
+		options.addOption(Option.builder().longOpt("header-count").hasArg()
+				.desc("Header lines per file, enables header parsing (default: 0)").build());
+		options.addOption(Option.builder("c").longOpt("concurrency").hasArg()
+				.desc("Publisher concurrency (default: 1)").build());
+		options.addOption(Option.builder().longOpt("compress").hasArg()
+				.desc("Publisher compression codec (default: none)").build());
+		options.addOption(Option.builder().longOpt("interval").hasArg()
+				.desc("Directory scan interval in seconds (default: 2)").build());
+		options.addOption(Option.builder().longOpt("drain").hasArg()
+				.desc("Seconds to wait for delivery after the last file (default: 60)").build());
+
+		try {
+			return new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			new HelpFormatter().printHelp("LoadGenerator", options);
+			System.err.println("\nCommand line error: " + e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.hawkprime.jms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses message payloads. The encoding is set on the message so
+ * consumers know how to decode it.
+ */
+public interface PayloadCodec {
+	/** Message property holding the encoding. */
+	String ENCODING_PROPERTY = "ContentEncoding";
+
+	/** Gzip at the default level. */
+	PayloadCodec GZIP = new GzipCodec("gzip", Deflater.DEFAULT_COMPRESSION);
+
+	/** Gzip at the fastest level, decoded the same as {@link #GZIP}. */
+	PayloadCodec GZIP_FAST = new GzipCodec("gzip-fast", Deflater.BEST_SPEED);
+
+	/**
+	 * Name used to select the codec.
+	 *
+	 * @return name
+	 */
+	String getName();
+
+	/**
+	 * Value of the {@link #ENCODING_PROPERTY} message property.
+	 *
+	 * @return encoding
+	 */
+	String getEncoding();
+
+	/**
+	 * Wrap a stream so what is written to it is compressed. Closing the
+	 * returned stream finishes the compressed data and closes the wrapped
+	 * stream.
+	 *
+	 * @param out stream receiving the compressed bytes
+	 * @return compressing stream
+	 * @throws IOException I/O exception
+	 */
+	OutputStream wrap(OutputStream out) throws IOException;
+
+	/**
+	 * Find a built in codec by name.
+	 *
+	 * @param name codec name
+	 * @return codec
+	 * @throws IllegalArgumentException if there is no such codec
+	 */
+	static PayloadCodec valueOf(final String name) {
+		for (PayloadCodec codec : new PayloadCodec[] {GZIP, GZIP_FAST}) {
+			if (codec.getName().equalsIgnoreCase(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown compression \"" + name + "\"");
+	}
+
+	/**
+	 * Gzip codec at a fixed compression level.
+	 */
+	final class GzipCodec implements PayloadCodec {
+		private static final int BUFFER_SIZE = 8192;
+		private final String name;
+		private final int level;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param name codec name
+		 * @param level deflater level
+		 */
+		GzipCodec(final String name, final int level) {
+			this.name = name;
+			this.level = level;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getEncoding() {
+			return "gzip";
+		}
+
+		@Override
+		public OutputStream wrap(final OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			};
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -1,15 +1,30 @@
 package com.hawkprime.jms;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.Destination;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TextMessage;
 
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,13 +35,35 @@ import com.tibco.tibjms.TibjmsConnectionFactory;
  */
 public class TibcoQueue {
 	private static final Logger LOG = LoggerFactory.getLogger(TibcoQueue.class);
+	private static final long PROBE_INTERVAL = 10000;
 
-	private Connection connection;
-	private Session session;
-	private MessageProducer msgProducer;
-	private Destination destination;
+	/**
+	 * How sends are spread across connections.
+	 */
+	public enum StripePolicy { ROUND_ROBIN, LEAST_IN_FLIGHT }
+
+	/**
+	 * Writes a message payload, called again on each retry.
+	 */
+	public interface PayloadWriter {
+
+		/**
+		 * Write the payload.
+		 *
+		 * @param out stream the payload is written to, not closed
+		 * @return headers found while writing the payload
+		 * @throws IOException I/O exception
+		 */
+		Map<String, String> write(OutputStream out) throws IOException;
+	}
+
+	private List<Member> members = new ArrayList<Member>();
+	private AtomicInteger nextMember = new AtomicInteger();
+	private StripePolicy stripePolicy = StripePolicy.ROUND_ROBIN;
+	private DeliveryProfile deliveryProfile = DeliveryProfile.PERSISTENT;
+	private int sessionCount = 1;
 
-	private String serverUrl;
+	private List<String> serverUrls;
 	private String userName;
 	private String password;
 	private String queueName;
@@ -46,7 +83,23 @@ public class TibcoQueue {
 	public TibcoQueue(final String serverUrl, final String userName,
 			final String password, final String queueName) {
 
-		this.serverUrl = serverUrl;
+		this(Arrays.asList(serverUrl), userName, password, queueName);
+	}
+
+	/**
+	 * Instantiates a new TibCo queue striped across several connections.
+	 * Each URL gets its own connection, a URL may itself be a comma separated
+	 * fault tolerant pair which the EMS client fails over between.
+	 *
+	 * @param serverUrls the server URLs, one per connection
+	 * @param userName the user name
+	 * @param password the password
+	 * @param queueName the queue name
+	 */
+	public TibcoQueue(final List<String> serverUrls, final String userName,
+			final String password, final String queueName) {
+
+		this.serverUrls = new ArrayList<String>(serverUrls);
 		this.userName = userName;
 		this.password = password;
 		this.queueName = queueName;
@@ -71,28 +124,79 @@ public class TibcoQueue {
 	}
 
 	/**
-	 *  Connect.
+	 * Set the number of sessions opened on each connection. This is the
+	 * maximum number of messages that can be in flight on a connection at
+	 * the same time.
+	 *
+	 * @param sessionCount number of sessions, at least one
+	 */
+	public void setSessionCount(final int sessionCount) {
+		this.sessionCount = Math.max(1, sessionCount);
+	}
+
+	/**
+	 * Get the number of sessions opened on each connection.
+	 *
+	 * @return number of sessions
+	 */
+	public int getSessionCount() {
+		return sessionCount;
+	}
+
+	/**
+	 * Set how sends are spread across connections.
+	 *
+	 * @param stripePolicy stripe policy
+	 */
+	public void setStripePolicy(final StripePolicy stripePolicy) {
+		this.stripePolicy = stripePolicy;
+	}
+
+	/**
+	 * Set the delivery profile used when a send does not name one.
+	 *
+	 * @param deliveryProfile delivery profile
+	 */
+	public void setDeliveryProfile(final DeliveryProfile deliveryProfile) {
+		this.deliveryProfile = deliveryProfile;
+	}
+
+	/**
+	 * Get the delivery profile used when a send does not name one.
+	 *
+	 * @return delivery profile
+	 */
+	public DeliveryProfile getDeliveryProfile() {
+		return deliveryProfile;
+	}
+
+	/**
+	 *  Connect. Members that fail to connect start out of rotation and are
+	 *  retried later, as long as at least one connects.
 	 *
 	 * @throws JMSException the JMS exception
 	 */
 	public void connect() throws JMSException {
-		LOG.info("Connecting to \"{}/{}\" as \"{}\" ...", serverUrl, queueName, userName);
-		TibjmsConnectionFactory factory = new TibjmsConnectionFactory(serverUrl);
+		JMSException lastException = null;
+		int connected = 0;
+		for (String serverUrl : serverUrls) {
+			Member member = new Member(serverUrl);
+			members.add(member);
+			try {
+				member.connect();
+				connected++;
+			} catch (JMSException e) {
+				member.fail(e);
+				lastException = e;
+			}
+		}
 
-		if (serverUrl.startsWith("ssl:")) {
-			factory.setSSLIdentity(sslClientKeyFile);
-			factory.setSSLPassword(sslPassword);
-			factory.setSSLTrustedCertificate(sslRootCertAuthFile, sslServerCertFile);
-			factory.setSSLVendor("j2se-default");
-			factory.setSSLEnableVerifyHostName(true);
-			factory.setSSLExpectedHostName(getHostName(serverUrl));
-			factory.setSSLEnableVerifyHost(true);
+		if (connected == 0) {
+			members.clear();
+			throw lastException;
 		}
 
-		connection = factory.createConnection(userName, password);
-		session = connection.createSession(false, javax.jms.Session.AUTO_ACKNOWLEDGE);
-		destination = session.createQueue(queueName);
-		msgProducer = session.createProducer(null);
+		LOG.debug("Opened {} connection(s) with {} session(s) each", connected, sessionCount);
 	}
 
 	/**
@@ -102,9 +206,7 @@ public class TibcoQueue {
 	 * @throws JMSException the JMS exception
 	 */
 	public void sendMessage(final String message) throws JMSException {
-		TextMessage msg = session.createTextMessage();
-		msg.setText(message);
-		msgProducer.send(destination, msg);
+		sendMessage(message, Collections.<String, String>emptyMap());
 	}
 
 	/**
@@ -115,23 +217,238 @@ public class TibcoQueue {
 	 * @throws JMSException the JMS exception
 	 */
 	public void sendMessage(final String message, Map<String, String> headers) throws JMSException {
-		TextMessage msg = session.createTextMessage();
+		sendMessage(message, headers, deliveryProfile);
+	}
+
+	/**
+	 * Send queue message with headers using a delivery profile. If the send
+	 * fails the member is taken out of rotation and the send is retried on
+	 * the next healthy member.
+	 *
+	 * @param message the message
+	 * @param headers the message headers
+	 * @param profile the delivery profile
+	 * @throws JMSException the JMS exception
+	 */
+	public void sendMessage(final String message, final Map<String, String> headers,
+			final DeliveryProfile profile) throws JMSException {
+
+		try {
+			send(new MessageBody() {
+				@Override
+				public Message create(final Session session) throws JMSException {
+					TextMessage msg = session.createTextMessage();
+					msg.setText(message);
+					return msg;
+				}
+			}, headers, profile);
+
+		} catch (IOException e) {
+			throw new JMSException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Send a file compressed as a bytes message. The file is streamed through
+	 * the codec into the message, it is never held uncompressed in memory.
+	 *
+	 * @param file the file
+	 * @param codec compression codec
+	 * @param headers the message headers
+	 * @param profile the delivery profile
+	 * @throws JMSException the JMS exception
+	 * @throws IOException if the file can not be read
+	 */
+	public void sendCompressed(final File file, final PayloadCodec codec, final Map<String, String> headers,
+			final DeliveryProfile profile) throws JMSException, IOException {
+
+		sendCompressed(new PayloadWriter() {
+			@Override
+			public Map<String, String> write(final OutputStream out) throws IOException {
+				FileUtils.copyFile(file, out);
+				return Collections.<String, String>emptyMap();
+			}
+		}, codec, headers, profile);
+	}
+
+	/**
+	 * Send a payload compressed as a bytes message. The payload is written
+	 * through the codec into the message, again on each retry, and the
+	 * headers it reports are set after it, the given headers win over them.
+	 *
+	 * @param payload writes the payload
+	 * @param codec compression codec
+	 * @param headers the message headers
+	 * @param profile the delivery profile
+	 * @throws JMSException the JMS exception
+	 * @throws IOException if the payload can not be read
+	 */
+	public void sendCompressed(final PayloadWriter payload, final PayloadCodec codec,
+			final Map<String, String> headers, final DeliveryProfile profile) throws JMSException, IOException {
+
+		send(new MessageBody() {
+			@Override
+			public Message create(final Session session) throws JMSException, IOException {
+				BytesMessage msg = session.createBytesMessage();
+				Map<String, String> found;
+				OutputStream out = codec.wrap(new BytesMessageOutputStream(msg));
+				try {
+					found = payload.write(out);
+				} finally {
+					out.close();
+				}
+				setHeaders(msg, found);
+				msg.setStringProperty(PayloadCodec.ENCODING_PROPERTY, codec.getEncoding());
+				return msg;
+			}
+		}, headers, profile);
+	}
+
+	/**
+	 * Send a message. If the member's connection fails the member is taken
+	 * out of rotation and the send is retried on the next healthy member,
+	 * errors caused by the message itself are thrown straight away.
+	 *
+	 * @param body creates the message
+	 * @param headers the message headers
+	 * @param profile the delivery profile
+	 * @throws JMSException the JMS exception
+	 * @throws IOException if the body can not be read
+	 */
+	private void send(final MessageBody body, final Map<String, String> headers,
+			final DeliveryProfile profile) throws JMSException, IOException {
+
+		if (members.isEmpty()) {
+			throw new JMSException("Not connected.");
+		}
+
+		JMSException lastException = null;
+		for (int attempt = 0; attempt < members.size(); attempt++) {
+			Member member = selectMember();
+			boolean probe = member.failed;
+			try {
+				member.reconnectIfNeeded();
+			} catch (JMSException e) {
+				member.fail(e);
+				lastException = e;
+				continue;
+			}
+
+			Channel channel = member.acquireChannel();
+			try {
+				Message msg;
+				try {
+					msg = body.create(channel.session);
+				} catch (IOException e) {
+					// a JMS failure surfaced through the message stream
+					if (e.getCause() instanceof JMSException) {
+						throw (JMSException) e.getCause();
+					}
+					throw e;
+				}
+
+				setHeaders(msg, headers);
+				channel.send(msg, profile);
+				member.restore();
+				return;
+
+			} catch (JMSException e) {
+				// a bad or oversized message fails the same way on every member
+				if (!isConnectionFailure(member, e)) {
+					throw e;
+				}
+				member.fail(e);
+				// the EMS client did not recover the connection, open a new one
+				if (probe || e instanceof javax.jms.IllegalStateException) {
+					member.needsReconnect = true;
+				}
+				lastException = e;
+
+			} finally {
+				member.releaseChannel(channel);
+			}
+		}
+
+		throw lastException;
+	}
+
+	/**
+	 * Set the headers as string properties.
+	 *
+	 * @param msg message
+	 * @param headers headers
+	 * @throws JMSException if a header can not be set
+	 */
+	private void setHeaders(final Message msg, final Map<String, String> headers) throws JMSException {
 		for (Entry<String, String> header : headers.entrySet()) {
-			LOG.info("Adding Header: \"{}\": \"{}\"", header.getKey(), header.getValue());
-			msg.setStringProperty(header.getKey(), header.getValue());
+			LOG.debug("Adding Header: \"{}\": \"{}\"", header.getKey(), header.getValue());
+			try {
+				msg.setStringProperty(header.getKey(), header.getValue());
+			} catch (IllegalArgumentException e) {
+				throw new JMSException("Invalid header \"" + header.getKey() + "\": " + e.getMessage());
+			}
 		}
-		msg.setText(message);
-		msgProducer.send(destination, msg);
+	}
+
+	/**
+	 * Whether a send failed because of its connection rather than the
+	 * message. The connection is closed or has reported an error.
+	 *
+	 * @param member member the send was made on
+	 * @param e exception
+	 * @return true for a connection failure
+	 */
+	private boolean isConnectionFailure(final Member member, final JMSException e) {
+		return e instanceof javax.jms.IllegalStateException || member.failed;
+	}
+
+	/**
+	 * Pick the member for the next send according to the stripe policy. A
+	 * failed member is given one send every probe interval to find out if
+	 * it has recovered.
+	 *
+	 * @return failed member due a probe, healthy member, or any member if
+	 *         all have failed in case the EMS client has since reconnected it
+	 */
+	private Member selectMember() {
+		Member selected = null;
+		int size = members.size();
+		int start = Math.floorMod(nextMember.getAndIncrement(), size);
+		for (int i = 0; i < size; i++) {
+			Member member = members.get((start + i) % size);
+			if (member.failed) {
+				if (member.claimProbe()) {
+					return member;
+				}
+				continue;
+			}
+
+			if (stripePolicy == StripePolicy.ROUND_ROBIN) {
+				return member;
+			}
+
+			if (selected == null || member.inFlight.get() < selected.inFlight.get()) {
+				selected = member;
+			}
+		}
+
+		if (selected == null) {
+			return members.get(start);
+		}
+		return selected;
 	}
 
 	/**
 	 * Close the connection.
 	 */
 	public void close() {
-		if (connection != null) {
+		for (Member member : members) {
+			if (member.connection == null) {
+				continue;
+			}
 			try {
-				LOG.info("Closing TibCo Connection");
-				connection.close();
+				LOG.info("Closing TibCo Connection to \"{}\"", member.serverUrl);
+				member.connection.close();
 			} catch (JMSException e) {
 				LOG.error("Unable to close TibCo Connection.");
 			}
@@ -150,4 +467,233 @@ public class TibcoQueue {
 		return url.substring(url.lastIndexOf("/") + 1);
 	}
 
+	/**
+	 * Creates the message for a send, called again on each retry.
+	 */
+	private interface MessageBody {
+		Message create(Session session) throws JMSException, IOException;
+	}
+
+	/**
+	 * Writes to the body of a bytes message.
+	 */
+	private static class BytesMessageOutputStream extends OutputStream {
+		private BytesMessage msg;
+
+		BytesMessageOutputStream(final BytesMessage msg) {
+			this.msg = msg;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			try {
+				msg.writeBytes(b, off, len);
+			} catch (JMSException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * One broker connection and its pool of sessions. The connection is
+	 * replaced when it can not be recovered, senders still holding a session
+	 * of the old one fail and retry elsewhere.
+	 */
+	private class Member {
+		private String serverUrl;
+		private volatile Connection connection;
+		private volatile BlockingQueue<Channel> idleChannels;
+		private AtomicInteger inFlight = new AtomicInteger();
+		private AtomicLong nextProbe = new AtomicLong();
+		private volatile boolean failed;
+		private volatile boolean needsReconnect;
+
+		/**
+		 * Constructor, does not connect.
+		 *
+		 * @param serverUrl server URL
+		 */
+		Member(final String serverUrl) {
+			this.serverUrl = serverUrl;
+		}
+
+		/**
+		 * Connect to the server and open the sessions, replacing the current
+		 * connection if there is one.
+		 *
+		 * @throws JMSException the JMS exception
+		 */
+		synchronized void connect() throws JMSException {
+			LOG.info("Connecting to \"{}/{}\" as \"{}\" ...", serverUrl, queueName, userName);
+			TibjmsConnectionFactory factory = new TibjmsConnectionFactory(serverUrl);
+
+			if (serverUrl.startsWith("ssl:")) {
+				factory.setSSLIdentity(sslClientKeyFile);
+				factory.setSSLPassword(sslPassword);
+				factory.setSSLTrustedCertificate(sslRootCertAuthFile, sslServerCertFile);
+				factory.setSSLVendor("j2se-default");
+				factory.setSSLEnableVerifyHostName(true);
+				factory.setSSLExpectedHostName(getHostName(serverUrl));
+				factory.setSSLEnableVerifyHost(true);
+			}
+
+			final Connection newConnection = factory.createConnection(userName, password);
+			BlockingQueue<Channel> channels = new ArrayBlockingQueue<Channel>(sessionCount);
+			try {
+				newConnection.setExceptionListener(new ExceptionListener() {
+					@Override
+					public void onException(final JMSException e) {
+						// ignore errors of a connection already replaced
+						if (connection == newConnection) {
+							fail(e);
+						}
+					}
+				});
+				for (int i = 0; i < sessionCount; i++) {
+					channels.add(new Channel(newConnection, channels));
+				}
+			} catch (JMSException e) {
+				closeQuietly(newConnection);
+				throw e;
+			}
+
+			Connection oldConnection = connection;
+			connection = newConnection;
+			idleChannels = channels;
+			needsReconnect = false;
+			if (oldConnection != null) {
+				closeQuietly(oldConnection);
+			}
+		}
+
+		/**
+		 * Connect again if the member never connected or its connection can
+		 * not be recovered.
+		 *
+		 * @throws JMSException the JMS exception
+		 */
+		void reconnectIfNeeded() throws JMSException {
+			if (connection == null || needsReconnect) {
+				synchronized (this) {
+					if (connection == null || needsReconnect) {
+						connect();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Wait for an idle session, sessions are not thread safe so each
+		 * send has exclusive use of one until it is returned.
+		 *
+		 * @return idle channel
+		 * @throws JMSException if interrupted while waiting
+		 */
+		Channel acquireChannel() throws JMSException {
+			inFlight.incrementAndGet();
+			try {
+				return idleChannels.take();
+			} catch (InterruptedException e) {
+				inFlight.decrementAndGet();
+				Thread.currentThread().interrupt();
+				throw new JMSException("Interrupted waiting for an idle session.");
+			}
+		}
+
+		/**
+		 * Return a channel to the pool it was taken from.
+		 *
+		 * @param channel channel
+		 */
+		void releaseChannel(final Channel channel) {
+			channel.pool.add(channel);
+			inFlight.decrementAndGet();
+		}
+
+		/**
+		 * Take the member out of rotation until a probe succeeds.
+		 *
+		 * @param e cause
+		 */
+		void fail(final JMSException e) {
+			nextProbe.set(System.currentTimeMillis() + PROBE_INTERVAL);
+			if (!failed) {
+				failed = true;
+				LOG.error("Connection to \"{}\" failed, removing from rotation: {}", serverUrl, e.getMessage());
+			}
+		}
+
+		/**
+		 * Claim the next probe of a failed member, only one sender gets it
+		 * per interval.
+		 *
+		 * @return true if the caller should probe the member
+		 */
+		boolean claimProbe() {
+			long due = nextProbe.get();
+			long now = System.currentTimeMillis();
+			return now >= due && nextProbe.compareAndSet(due, now + PROBE_INTERVAL);
+		}
+
+		/**
+		 * Put the member back into rotation after a successful send.
+		 */
+		void restore() {
+			if (failed) {
+				failed = false;
+				LOG.info("Connection to \"{}\" restored.", serverUrl);
+			}
+		}
+
+		private void closeQuietly(final Connection oldConnection) {
+			try {
+				oldConnection.close();
+			} catch (JMSException e) {
+				LOG.debug("Unable to close connection to \"{}\": {}", serverUrl, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Session and producer pair, used by one sender at a time.
+	 */
+	private class Channel {
+		private Session session;
+		private MessageProducer producer;
+		private Destination destination;
+		private BlockingQueue<Channel> pool;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param connection connection to open the session on
+		 * @param pool pool the channel is returned to
+		 * @throws JMSException the JMS exception
+		 */
+		Channel(final Connection connection, final BlockingQueue<Channel> pool) throws JMSException {
+			this.pool = pool;
+			session = connection.createSession(false, javax.jms.Session.AUTO_ACKNOWLEDGE);
+			destination = session.createQueue(queueName);
+			producer = session.createProducer(null);
+		}
+
+		/**
+		 * Send using the profile's producer settings.
+		 *
+		 * @param msg message
+		 * @param profile delivery profile
+		 * @throws JMSException the JMS exception
+		 */
+		void send(final Message msg, final DeliveryProfile profile) throws JMSException {
+			producer.setDisableMessageID(profile.isDisableMessageId());
+			producer.setDisableMessageTimestamp(profile.isDisableMessageTimestamp());
+			producer.send(destination, msg, profile.getDeliveryMode(),
+					profile.getPriority(), profile.getTimeToLive());
+		}
+	}
 }
@@ -0,0 +1,202 @@
+package com.hawkprime.jms;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pulls header values out of an XML payload with a single streaming pass.
+ * Paths are absolute and use local names, namespaces are ignored:
+ * <code>/order/header/id</code> selects the text of an element and
+ * <code>/order/@type</code> an attribute. The first match of each path wins
+ * and parsing stops as soon as every path has been found.
+ */
+public class XmlHeaderExtractor {
+	private static final Logger LOG = LoggerFactory.getLogger(XmlHeaderExtractor.class);
+
+	private XMLInputFactory factory;
+	private Map<String, String> elementPaths = new LinkedHashMap<String, String>();
+	private Map<String, String> attributePaths = new LinkedHashMap<String, String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param paths header name to path
+	 */
+	public XmlHeaderExtractor(final Map<String, String> paths) {
+		for (Entry<String, String> path : paths.entrySet()) {
+			String value = path.getValue().trim();
+			if (!value.startsWith("/") || value.endsWith("/")) {
+				throw new IllegalArgumentException("Invalid path \"" + value + "\" for header " + path.getKey());
+			}
+
+			if (value.contains("/@")) {
+				attributePaths.put(path.getKey(), value);
+			} else {
+				elementPaths.put(path.getKey(), value);
+			}
+		}
+
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	/**
+	 * Extract the headers. Paths that are not found are left out, if the
+	 * document is malformed the headers found before the error are returned.
+	 *
+	 * @param xml XML payload
+	 * @return header name to value
+	 */
+	public Map<String, String> extract(final Reader xml) {
+		Map<String, String> headers = new HashMap<String, String>();
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(xml);
+			extract(reader, headers);
+		} catch (XMLStreamException e) {
+			LOG.warn("Unable to parse XML headers: {}", e.getMessage());
+		} finally {
+			close(reader);
+		}
+		return headers;
+	}
+
+	/**
+	 * Extract the headers from raw bytes, the encoding is taken from the
+	 * XML declaration. Paths that are not found are left out, if the
+	 * document is malformed the headers found before the error are returned.
+	 * The stream is left open, at the last byte the parser read.
+	 *
+	 * @param xml XML payload
+	 * @return header name to value
+	 */
+	public Map<String, String> extract(final InputStream xml) {
+		Map<String, String> headers = new HashMap<String, String>();
+		XMLStreamReader reader = null;
+		try {
+			// the parser closes its input at the end of the document
+			reader = factory.createXMLStreamReader(new CloseShieldInputStream(xml));
+			extract(reader, headers);
+		} catch (XMLStreamException e) {
+			LOG.warn("Unable to parse XML headers: {}", e.getMessage());
+		} finally {
+			close(reader);
+		}
+		return headers;
+	}
+
+	/**
+	 * Read until every path has been found or the document ends.
+	 *
+	 * @param reader reader positioned at the start of the document
+	 * @param headers headers found, added to as they are found
+	 * @throws XMLStreamException if the document is malformed
+	 */
+	private void extract(final XMLStreamReader reader, final Map<String, String> headers)
+			throws XMLStreamException {
+
+		int wanted = elementPaths.size() + attributePaths.size();
+		StringBuilder path = new StringBuilder();
+		List<Integer> pathLengths = new ArrayList<Integer>();
+		Map<String, StringBuilder> collecting = new HashMap<String, StringBuilder>();
+		Map<String, String> collectingPaths = new HashMap<String, String>();
+
+		while (reader.hasNext() && headers.size() < wanted) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					pathLengths.add(path.length());
+					path.append('/').append(reader.getLocalName());
+					String current = path.toString();
+
+					for (Entry<String, String> entry : elementPaths.entrySet()) {
+						if (current.equals(entry.getValue()) && !headers.containsKey(entry.getKey())
+								&& !collecting.containsKey(entry.getKey())) {
+							collecting.put(entry.getKey(), new StringBuilder());
+							collectingPaths.put(entry.getKey(), current);
+						}
+					}
+
+					for (Entry<String, String> entry : attributePaths.entrySet()) {
+						if (!headers.containsKey(entry.getKey())) {
+							String value = attributeValue(reader, current, entry.getValue());
+							if (value != null) {
+								headers.put(entry.getKey(), value);
+							}
+						}
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					for (StringBuilder text : collecting.values()) {
+						text.append(reader.getText());
+					}
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					String ended = path.toString();
+					for (Entry<String, String> entry : collectingPaths.entrySet()) {
+						if (ended.equals(entry.getValue())) {
+							headers.put(entry.getKey(), collecting.remove(entry.getKey()).toString().trim());
+						}
+					}
+					collectingPaths.keySet().retainAll(collecting.keySet());
+					path.setLength(pathLengths.remove(pathLengths.size() - 1));
+					break;
+
+				default:
+					break;
+			}
+		}
+	}
+
+	private static void close(final XMLStreamReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				/* ignore */
+			}
+		}
+	}
+
+	/**
+	 * Get the attribute value if the attribute path matches the current element.
+	 *
+	 * @param reader reader positioned on a start element
+	 * @param current current element path
+	 * @param attributePath attribute path
+	 * @return value or null
+	 */
+	private String attributeValue(final XMLStreamReader reader, final String current, final String attributePath) {
+		int index = attributePath.lastIndexOf("/@");
+		if (!current.equals(attributePath.substring(0, index))) {
+			return null;
+		}
+
+		String name = attributePath.substring(index + 2);
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			if (name.equals(reader.getAttributeLocalName(i))) {
+				return reader.getAttributeValue(i);
+			}
+		}
+		return null;
+	}
+}
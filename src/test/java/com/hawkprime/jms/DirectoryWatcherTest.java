@@ -0,0 +1,101 @@
+package com.hawkprime.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Directory watcher tests, driven by single scans.
+ */
+public class DirectoryWatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DirectoryWatcher watcher;
+	private List<String> events = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		watcher = new DirectoryWatcher(folder.getRoot().getPath(), ".xml");
+		final String source = watcher.getDirectory();
+		watcher.addListener(new DirectoryListener() {
+			@Override
+			public void fileAdded(final File file) {
+				events.add("added " + relative(file));
+			}
+
+			@Override
+			public void fileModified(final File file) {
+				events.add("modified " + relative(file));
+			}
+
+			@Override
+			public void fileDeleted(final File file) {
+				events.add("deleted " + relative(file));
+			}
+
+			private String relative(final File file) {
+				return file.getAbsolutePath().replace(source, "").replace(File.separatorChar, '/');
+			}
+		});
+	}
+
+	@Test
+	public void unchangedFilesInSubDirectoriesAreReportedOnce() throws Exception {
+		createFile("/root.xml");
+		createFile("/sub/a.xml");
+
+		watcher.scan();
+		Collections.sort(events);
+		assertEquals(Arrays.asList("added /root.xml", "added /sub/a.xml"), events);
+
+		events.clear();
+		watcher.scan();
+		watcher.scan();
+		assertTrue(events.isEmpty());
+	}
+
+	@Test
+	public void modifiedAndDeletedFilesAreReported() throws Exception {
+		File file = createFile("/sub/a.xml");
+		createFile("/gone/b.xml");
+		watcher.scan();
+		events.clear();
+
+		assertTrue(file.setLastModified(file.lastModified() - 10000));
+		FileUtils.deleteDirectory(new File(watcher.getDirectory(), "gone"));
+		watcher.scan();
+		assertEquals(Arrays.asList("modified /sub/a.xml", "deleted /gone/b.xml"), events);
+	}
+
+	@Test
+	public void forgottenFileIsReportedAgain() throws Exception {
+		File file = createFile("/sub/a.xml");
+		watcher.scan();
+		events.clear();
+
+		watcher.forget(file);
+		watcher.scan();
+		assertEquals(Arrays.asList("added /sub/a.xml"), events);
+	}
+
+	private File createFile(final String relativePath) throws IOException {
+		File file = new File(watcher.getDirectory() + relativePath);
+		FileUtils.writeStringToFile(file, "<a/>", StandardCharsets.UTF_8);
+		return file;
+	}
+}
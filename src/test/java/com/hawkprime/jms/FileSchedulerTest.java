@@ -0,0 +1,150 @@
+package com.hawkprime.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * File scheduler tests, driven by single watcher scans.
+ */
+public class FileSchedulerTest {
+	private static final long TIMEOUT = 5000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DirectoryWatcher watcher;
+	private FileScheduler scheduler;
+	private List<String> published = Collections.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() throws IOException {
+		watcher = new DirectoryWatcher(folder.getRoot().getPath(), ".xml");
+	}
+
+	@After
+	public void tearDown() {
+		if (scheduler != null) {
+			scheduler.stop();
+		}
+	}
+
+	@Test
+	public void fileRejectedWhenFullIsReportedAgain() throws Exception {
+		createScheduler(2);
+		createFile("/a.xml", 1);
+		createFile("/b.xml", 2);
+		createFile("/c.xml", 3);
+
+		watcher.scan();
+		assertEquals(2, scheduler.getPendingCount());
+
+		scheduler.start();
+		awaitPublished(2);
+
+		watcher.scan();
+		awaitPublished(3);
+		assertEquals(new HashSet<String>(Arrays.asList("/a.xml", "/b.xml", "/c.xml")),
+				new HashSet<String>(published));
+	}
+
+	@Test
+	public void smallerGroupEvictsFromLargestGroupAtSamePriority() throws Exception {
+		createScheduler(3);
+		createFile("/big/1.xml", 1);
+		createFile("/big/2.xml", 2);
+		createFile("/big/3.xml", 3);
+		watcher.scan();
+		assertEquals(3, scheduler.getPendingCount());
+
+		createFile("/small/1.xml", 4);
+		watcher.scan();
+		assertEquals(3, scheduler.getPendingCount());
+
+		scheduler.start();
+		awaitPublished(3);
+		assertEquals(Arrays.asList("/big/1.xml", "/small/1.xml", "/big/2.xml"), published);
+
+		// the evicted file is picked up again
+		watcher.scan();
+		awaitPublished(4);
+		assertEquals("/big/3.xml", published.get(3));
+	}
+
+	@Test
+	public void olderFileEvictsNewerFileOfItsGroup() throws Exception {
+		createScheduler(2, FileScheduler.Policy.OLDEST_FIRST);
+		createFile("/c.xml", 3);
+		createFile("/b.xml", 2);
+		watcher.scan();
+		assertEquals(2, scheduler.getPendingCount());
+
+		createFile("/a.xml", 1);
+		watcher.scan();
+		assertEquals(2, scheduler.getPendingCount());
+
+		scheduler.start();
+		awaitPublished(2);
+		assertEquals(Arrays.asList("/a.xml", "/b.xml"), published);
+
+		// the evicted file is picked up again
+		watcher.scan();
+		awaitPublished(3);
+		assertEquals("/c.xml", published.get(2));
+	}
+
+	private void createScheduler(final int capacity) {
+		createScheduler(capacity, FileScheduler.Policy.ROUND_ROBIN);
+	}
+
+	private void createScheduler(final int capacity, final FileScheduler.Policy policy) {
+		final String source = watcher.getDirectory();
+		scheduler = new FileScheduler(watcher, new DirectoryListener() {
+			@Override
+			public void fileAdded(final File file) {
+				published.add(file.getAbsolutePath().replace(source, "").replace(File.separatorChar, '/'));
+				assertTrue(file.delete());
+			}
+
+			@Override
+			public void fileModified(final File file) {
+				fileAdded(file);
+			}
+
+			@Override
+			public void fileDeleted(final File file) {
+				/* ignore */
+			}
+		}, policy, capacity, 1);
+		watcher.addListener(scheduler);
+	}
+
+	private void createFile(final String relativePath, final int age) throws IOException {
+		File file = new File(watcher.getDirectory() + relativePath);
+		FileUtils.writeStringToFile(file, "<a/>", StandardCharsets.UTF_8);
+		assertTrue(file.setLastModified(age * 1000L));
+	}
+
+	private void awaitPublished(final int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (published.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, published.size());
+	}
+}
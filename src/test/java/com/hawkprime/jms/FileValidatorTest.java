@@ -0,0 +1,110 @@
+package com.hawkprime.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * File validator tests.
+ */
+public class FileValidatorTest {
+	private static final long TIMEOUT = 5000;
+	private static final String LATIN_1 = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>café</a>";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File source;
+	private File quarantine;
+	private List<File> passed = Collections.synchronizedList(new ArrayList<File>());
+
+	@Before
+	public void setUp() throws IOException {
+		source = folder.newFolder("source").getCanonicalFile();
+		quarantine = folder.newFolder("quarantine").getCanonicalFile();
+	}
+
+	@Test
+	public void declaredEncodingIsUsedWithoutHeaders() throws Exception {
+		File file = createFile("/a.xml", "", LATIN_1);
+		assertPassed(validate(file, false), file);
+	}
+
+	@Test
+	public void declaredEncodingIsUsedAfterHeaders() throws Exception {
+		File file = createFile("/a.xml", "Name: value\r\n\r\n", LATIN_1);
+		assertPassed(validate(file, true), file);
+	}
+
+	@Test
+	public void malformedFileAfterHeadersIsQuarantined() throws Exception {
+		File file = createFile("/sub/a.xml", "Name: value\n\n", "<a><b></a>");
+		FileValidator validator = validate(file, true);
+		File quarantined = new File(quarantine, "sub/a.xml");
+		awaitFile(quarantined);
+		validator.stop();
+		assertTrue(passed.isEmpty());
+	}
+
+	private FileValidator validate(final File file, final boolean hasHeaders) throws IOException {
+		FileValidator validator = new FileValidator(new DirectoryListener() {
+			@Override
+			public void fileAdded(final File added) {
+				passed.add(added);
+			}
+
+			@Override
+			public void fileModified(final File modified) {
+				passed.add(modified);
+			}
+
+			@Override
+			public void fileDeleted(final File deleted) {
+				/* ignore */
+			}
+		}, source.getAbsolutePath(), quarantine.getPath(), hasHeaders);
+		validator.start(1);
+		validator.fileAdded(file);
+		return validator;
+	}
+
+	private void assertPassed(final FileValidator validator, final File file) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (passed.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		validator.stop();
+		assertEquals(Collections.singletonList(file), passed);
+		assertTrue(file.isFile());
+	}
+
+	private void awaitFile(final File file) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!file.isFile() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(file.isFile());
+	}
+
+	private File createFile(final String relativePath, final String headers, final String xml) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(headers.getBytes(StandardCharsets.UTF_8));
+		bytes.write(xml.getBytes(StandardCharsets.ISO_8859_1));
+		File file = new File(source.getPath() + relativePath);
+		FileUtils.writeByteArrayToFile(file, bytes.toByteArray());
+		return file;
+	}
+}
@@ -0,0 +1,116 @@
+package com.hawkprime.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.junit.Test;
+
+/**
+ * XML header extractor tests.
+ */
+public class XmlHeaderExtractorTest {
+	private static final String ORDER = "<?xml version=\"1.0\"?>"
+			+ "<o:order xmlns:o=\"urn:order\" type=\"rush\">"
+			+ "<o:header><o:id> 42 </o:id><o:id>43</o:id></o:header>"
+			+ "<o:lines><o:line sku=\"a\"/><o:line sku=\"b\"/></o:lines>"
+			+ "</o:order>";
+
+	@Test
+	public void elementTextIsTrimmedAndFirstMatchWins() {
+		Map<String, String> headers = extractor("Id", "/order/header/id").extract(new StringReader(ORDER));
+		assertEquals("42", headers.get("Id"));
+	}
+
+	@Test
+	public void attributesOfRootAndNestedElements() {
+		Map<String, String> headers = extractor("Type", "/order/@type", "Sku", "/order/lines/line/@sku")
+				.extract(new StringReader(ORDER));
+		assertEquals("rush", headers.get("Type"));
+		assertEquals("a", headers.get("Sku"));
+	}
+
+	@Test
+	public void pathsMustMatchFromTheRoot() {
+		Map<String, String> headers = extractor("Id", "/header/id", "Type", "/lines/@type")
+				.extract(new StringReader(ORDER));
+		assertTrue(headers.isEmpty());
+	}
+
+	@Test
+	public void missingPathsAreLeftOut() {
+		Map<String, String> headers = extractor("Id", "/order/header/id", "Missing", "/order/missing")
+				.extract(new StringReader(ORDER));
+		assertEquals("42", headers.get("Id"));
+		assertFalse(headers.containsKey("Missing"));
+	}
+
+	@Test
+	public void headersBeforeMalformedContentAreKept() {
+		Map<String, String> headers = extractor("Id", "/order/header/id", "Missing", "/order/missing")
+				.extract(new StringReader("<order><header><id>7</id></header><broken></order>"));
+		assertEquals("7", headers.get("Id"));
+		assertEquals(1, headers.size());
+	}
+
+	@Test
+	public void encodingIsTakenFromTheDeclaration() {
+		byte[] xml = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a><b>café</b></a>"
+				.getBytes(StandardCharsets.ISO_8859_1);
+		Map<String, String> headers = extractor("B", "/a/b").extract(new ByteArrayInputStream(xml));
+		assertEquals("café", headers.get("B"));
+	}
+
+	@Test
+	public void stopsReadingOnceEveryPathIsFound() {
+		StringBuilder xml = new StringBuilder("<a><b>1</b>");
+		for (int i = 0; i < 10000; i++) {
+			xml.append("<c>filler</c>");
+		}
+		xml.append("</a>");
+		byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+		CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(bytes));
+		assertEquals("1", extractor("B", "/a/b").extract(in).get("B"));
+		assertTrue(in.getByteCount() < bytes.length);
+	}
+
+	@Test
+	public void streamIsLeftOpenForTheRestOfThePayload() throws IOException {
+		byte[] bytes = ORDER.getBytes(StandardCharsets.UTF_8);
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// a missing path makes the parser read to the end of the document
+		extractor("Id", "/order/missing").extract(new TeeInputStream(in, out));
+		IOUtils.copy(in, out);
+		assertTrue(Arrays.equals(bytes, out.toByteArray()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void relativePathIsRejected() {
+		extractor("Id", "order/id");
+	}
+
+	private static XmlHeaderExtractor extractor(final String... namesAndPaths) {
+		Map<String, String> paths = new LinkedHashMap<String, String>();
+		for (int i = 0; i < namesAndPaths.length; i += 2) {
+			paths.put(namesAndPaths[i], namesAndPaths[i + 1]);
+		}
+		return new XmlHeaderExtractor(paths);
+	}
+}